@@ -0,0 +1,74 @@
+package nachos.ag;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.Channel;
+import nachos.threads.Communicator;
+import nachos.threads.KThread;
+
+/**
+ * Compares how fast a <tt>Communicator</tt> and a <tt>Channel</tt> move words
+ * from one kernel thread to another. Each sends 1000 words, one at a time
+ * through the communicator and in batches of up to 7 through a channel of 64
+ * words, and the time taken is printed in ticks and host words per second.
+ * Does not run the kernel. For example:
+ *
+ * <pre>
+ * nachos -[] conf/proj1.conf -- nachos.ag.ChannelBench
+ * </pre>
+ */
+public class ChannelBench extends AutoGrader {
+	@Override
+	void run() {
+		final Communicator communicator = new Communicator();
+		long ticks = getTime();
+		long nanos = System.nanoTime();
+		KThread speaker = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < words; i++)
+					communicator.speak(i);
+			}
+		}).setName("speaker");
+		speaker.fork();
+		for (int i = 0; i < words; i++)
+			Lib.assertTrue(communicator.listen() == i);
+		speaker.join();
+		report("Communicator", ticks, nanos);
+
+		final Channel channel = new Channel(64);
+		ticks = getTime();
+		nanos = System.nanoTime();
+		KThread sender = new KThread(new Runnable() {
+			public void run() {
+				int[] buffer = new int[7];
+				for (int sent = 0, len = 1; sent < words; sent += len, len = len % 7 + 1) {
+					len = Math.min(len, words - sent);
+					for (int i = 0; i < len; i++)
+						buffer[i] = sent + i;
+					channel.send(buffer, 0, len);
+				}
+			}
+		}).setName("sender");
+		sender.fork();
+		int[] buffer = new int[64];
+		for (int received = 0; received < words;) {
+			int n = channel.receive(buffer, 0, 64);
+			for (int i = 0; i < n; i++)
+				Lib.assertTrue(buffer[i] == received + i);
+			received += n;
+		}
+		sender.join();
+		report("Channel", ticks, nanos);
+
+		Machine.halt();
+	}
+
+	private void report(String name, long ticks, long nanos) {
+		ticks = getTime() - ticks;
+		nanos = System.nanoTime() - nanos;
+		System.out.println(name + ": " + words + " words in " + ticks
+				+ " ticks, " + (long) (words / (nanos / 1e9)) + " words/s");
+	}
+
+	private static final int words = 1000;
+}
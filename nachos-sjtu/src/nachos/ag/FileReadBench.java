@@ -0,0 +1,124 @@
+package nachos.ag;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+import nachos.threads.KThread;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * Measures how fast kernel threads read separate files at the same time,
+ * optionally while another thread keeps writing a file of its own. Rounds of
+ * 1, 2, 4 and 8 readers each read their own file 40 times over in 4 KB reads,
+ * and the throughput of each round is printed in bytes per thousand ticks.
+ * Does not run the kernel, so the shell of a file system kernel never starts.
+ *
+ * <p>
+ * Takes the boolean argument <tt>writer</tt>, for example:
+ *
+ * <pre>
+ * nachos -[] conf/proj5.conf -- nachos.ag.FileReadBench -# writer=1
+ * </pre>
+ */
+public class FileReadBench extends AutoGrader {
+	@Override
+	void run() {
+		boolean withWriter = getBooleanArgument("writer");
+
+		byte[] data = new byte[fileSize];
+		for (int i = 0; i <= maxReaders; i++) {
+			OpenFile file = ThreadedKernel.fileSystem.open(fileName(i), true);
+			Lib.assertTrue(file != null, "cannot create " + fileName(i));
+			Lib.assertTrue(file.write(0, data, 0, fileSize) == fileSize);
+			file.close();
+		}
+
+		for (int n = 1; n <= maxReaders; n *= 2) {
+			bytesRead = 0;
+			stop = false;
+			long startTicks = getTime();
+			long startNanos = System.nanoTime();
+
+			KThread[] readers = new KThread[n];
+			for (int i = 0; i < n; i++) {
+				readers[i] = new KThread(new Reader(fileName(i)))
+						.setName("reader " + i);
+				readers[i].fork();
+			}
+			KThread writer = null;
+			if (withWriter) {
+				writer = new KThread(new Writer(fileName(maxReaders)))
+						.setName("writer");
+				writer.fork();
+			}
+
+			for (int i = 0; i < n; i++)
+				readers[i].join();
+			long ticks = getTime() - startTicks;
+			long millis = (System.nanoTime() - startNanos) / 1000000;
+			stop = true;
+			if (writer != null)
+				writer.join();
+
+			System.out.println(n + " readers" + (withWriter ? " + 1 writer" : "")
+					+ ": " + bytesRead + " bytes in " + ticks + " ticks, "
+					+ (bytesRead * 1000 / ticks) + " bytes/kilotick, host "
+					+ millis + " ms");
+		}
+
+		for (int i = 0; i <= maxReaders; i++)
+			ThreadedKernel.fileSystem.remove(fileName(i));
+
+		Machine.halt();
+	}
+
+	private static String fileName(int i) {
+		return "readbench" + i;
+	}
+
+	private class Reader implements Runnable {
+		Reader(String name) {
+			this.name = name;
+		}
+
+		public void run() {
+			OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+			byte[] buffer = new byte[chunkSize];
+			for (int pass = 0; pass < passes; pass++) {
+				for (int pos = 0; pos < fileSize; pos += chunkSize) {
+					Lib.assertTrue(file.read(pos, buffer, 0, chunkSize) == chunkSize);
+					bytesRead += chunkSize;
+				}
+			}
+			file.close();
+		}
+
+		private String name;
+	}
+
+	private class Writer implements Runnable {
+		Writer(String name) {
+			this.name = name;
+		}
+
+		public void run() {
+			OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+			byte[] buffer = new byte[chunkSize];
+			while (!stop) {
+				for (int pos = 0; pos < fileSize && !stop; pos += chunkSize)
+					file.write(pos, buffer, 0, chunkSize);
+			}
+			file.close();
+		}
+
+		private String name;
+	}
+
+	private static final int maxReaders = 8;
+	private static final int fileSize = 32 * 1024;
+	private static final int chunkSize = 4096;
+	private static final int passes = 40;
+
+	private long bytesRead;
+	private boolean stop;
+}
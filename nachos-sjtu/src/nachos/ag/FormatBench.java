@@ -0,0 +1,65 @@
+package nachos.ag;
+
+import nachos.filesys.FilesysKernel;
+import nachos.filesys.FreeList;
+import nachos.filesys.INode;
+import nachos.machine.Disk;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * Measures how the free list scales with the size of the disk: how long it
+ * takes to format a free list, to save the one in use, to load it back (as
+ * mounting does), and to make 200 allocations from the loaded copy. Only the
+ * free list in use is written, and only with what it already holds, so the
+ * file system is left intact. Does not run the kernel.
+ *
+ * <p>
+ * The disk geometry is read from the config, so run it once per size, for
+ * example with <tt>Disk.numTracks</tt> set to 64, 640 and 6400 in copies of
+ * <tt>conf/proj5.conf</tt>:
+ *
+ * <pre>
+ * nachos -[] conf/proj5.conf -- nachos.ag.FormatBench
+ * </pre>
+ */
+public class FormatBench extends AutoGrader {
+	@Override
+	void run() {
+		INode inode = INode.getINode(FreeList.STATIC_ADDR, INode.TYPE_SYSTEM,
+				true);
+		FreeList inUse = FilesysKernel.realFileSystem.getFreeList();
+
+		long startNanos = System.nanoTime();
+		new FreeList(inode).init();
+		long formatNanos = System.nanoTime() - startNanos;
+
+		long startTicks = getTime();
+		startNanos = System.nanoTime();
+		inUse.save();
+		Machine.bufferCache().flush();
+		long saveNanos = System.nanoTime() - startNanos;
+		long saveTicks = getTime() - startTicks;
+
+		startNanos = System.nanoTime();
+		FreeList loaded = new FreeList(inode);
+		loaded.load();
+		long loadNanos = System.nanoTime() - startNanos;
+		Lib.assertTrue(loaded.freeSize() == inUse.freeSize());
+
+		startNanos = System.nanoTime();
+		for (int i = 0; i < allocations; i++)
+			Lib.assertTrue(loaded.allocate() != null);
+		long allocateNanos = System.nanoTime() - startNanos;
+
+		System.out.println(Disk.NumSectors + " sectors (" + Disk.DiskSize
+				/ 1024 + " KB): format " + formatNanos / 1000 + " us, save "
+				+ saveNanos / 1000 + " us (" + saveTicks + " ticks), load "
+				+ loadNanos / 1000 + " us, " + allocations + " allocations "
+				+ allocateNanos / 1000 + " us");
+
+		Machine.halt();
+	}
+
+	private static final int allocations = 200;
+}
@@ -0,0 +1,56 @@
+package nachos.ag;
+
+import nachos.filesys.FilesysKernel;
+import nachos.filesys.RealFileSystem;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.OpenFile;
+
+/**
+ * Measures how fast the file system resolves deep paths. Creates 16 nested
+ * folders with a file at the bottom, then repeatedly opens and closes that
+ * file and tries to open a path that misses at its third component. Prints
+ * the host time per iteration for each of 5 rounds of 50000 iterations. Does
+ * not run the kernel, so the shell of a file system kernel never starts.
+ * For example:
+ *
+ * <pre>
+ * nachos -[] conf/proj5.conf -- nachos.ag.PathBench
+ * </pre>
+ */
+public class PathBench extends AutoGrader {
+	@Override
+	void run() {
+		RealFileSystem fs = FilesysKernel.realFileSystem;
+
+		String path = "";
+		for (int i = 0; i < depth; i++) {
+			path += "/dir" + i;
+			Lib.assertTrue(fs.createFolder(path), "cannot create " + path);
+		}
+		String leaf = path + "/leaf";
+		OpenFile file = fs.open(leaf, true);
+		Lib.assertTrue(file != null, "cannot create " + leaf);
+		file.close();
+		String miss = "/dir0/dir1/nothere/dir3/leaf";
+
+		for (int round = 0; round < rounds; round++) {
+			long startNanos = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				file = fs.open(leaf, false);
+				Lib.assertTrue(file != null);
+				file.close();
+				Lib.assertTrue(fs.open(miss, false) == null);
+			}
+			long nanos = System.nanoTime() - startNanos;
+			System.out.println("depth " + depth + " open + early miss: "
+					+ (nanos / iterations) + " ns per iteration");
+		}
+
+		Machine.halt();
+	}
+
+	private static final int depth = 16;
+	private static final int rounds = 5;
+	private static final int iterations = 50000;
+}
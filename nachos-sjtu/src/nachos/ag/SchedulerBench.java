@@ -0,0 +1,97 @@
+package nachos.ag;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.PriorityScheduler;
+import nachos.threads.Scheduler;
+import nachos.threads.ThreadQueue;
+import nachos.threads.ThreadedKernel;
+
+/**
+ * Measures the queues of the scheduler set by
+ * <tt>ThreadedKernel.scheduler</tt> with many threads, without running any of
+ * them. First, 5000 threads of random priorities sit in a ready queue, and the
+ * next thread is taken out and put back 200000 times. Then a chain of 200
+ * locks is built, where each thread holds one lock and waits for the previous
+ * one, with 500 more threads waiting on every lock, and the priority of the
+ * thread at the end of the chain is raised and lowered 2000 times, so that the
+ * donation travels down the whole chain. Each is measured 5 times, and the
+ * host time per operation is printed. The lock chain is skipped for
+ * schedulers that do not donate priority. Does not run the kernel. For
+ * example:
+ *
+ * <pre>
+ * nachos -[] conf/proj1.conf -- nachos.ag.SchedulerBench
+ * </pre>
+ */
+public class SchedulerBench extends AutoGrader {
+	@Override
+	void run() {
+		Scheduler scheduler = ThreadedKernel.scheduler;
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadQueue readyQueue = scheduler.newReadyQueue();
+		for (int i = 0; i < readyThreads; i++) {
+			KThread thread = new KThread();
+			scheduler.setPriority(thread, lowPriority + Lib.random(highPriority));
+			readyQueue.waitForAccess(thread);
+		}
+		for (int round = 0; round < rounds; round++) {
+			long startNanos = System.nanoTime();
+			for (int i = 0; i < requeues; i++)
+				readyQueue.waitForAccess(readyQueue.nextThread());
+			long nanos = System.nanoTime() - startNanos;
+			System.out.println(readyThreads + " ready threads: " + nanos
+					/ requeues + " ns per requeue");
+		}
+
+		if (!(scheduler instanceof PriorityScheduler)) {
+			Machine.interrupt().restore(intStatus);
+			Machine.halt();
+			return;
+		}
+
+		ThreadQueue[] locks = new ThreadQueue[chainLength];
+		KThread first = new KThread(), holder = first;
+		for (int i = 0; i < chainLength; i++) {
+			locks[i] = scheduler.newThreadQueue(true);
+			locks[i].acquire(holder);
+			for (int j = 0; j < waitersPerLock; j++) {
+				KThread waiter = new KThread();
+				scheduler.setPriority(waiter, lowPriority);
+				locks[i].waitForAccess(waiter);
+			}
+			holder = new KThread();
+			scheduler.setPriority(holder, lowPriority);
+			locks[i].waitForAccess(holder);
+		}
+		scheduler.setPriority(holder, highPriority);
+		Lib.assertTrue(scheduler.getEffectivePriority(first) >= highPriority,
+				"donation did not reach the start of the chain");
+		for (int round = 0; round < rounds; round++) {
+			long startNanos = System.nanoTime();
+			for (int i = 0; i < flips; i++) {
+				scheduler.setPriority(holder, highPriority);
+				scheduler.setPriority(holder, lowPriority);
+			}
+			long nanos = System.nanoTime() - startNanos;
+			System.out.println(chainLength + "-lock chain: " + nanos
+					/ (2 * flips) + " ns per priority change");
+		}
+
+		Machine.interrupt().restore(intStatus);
+		Machine.halt();
+	}
+
+	/** Valid for both priorities and tickets. */
+	private static final int lowPriority = 1;
+	private static final int highPriority = PriorityScheduler.priorityMaximum;
+
+	private static final int rounds = 5;
+	private static final int readyThreads = 5000;
+	private static final int requeues = 200000;
+	private static final int chainLength = 200;
+	private static final int waitersPerLock = 500;
+	private static final int flips = 2000;
+}
@@ -0,0 +1,81 @@
+package nachos.ag;
+
+import nachos.machine.Config;
+import nachos.machine.Machine;
+import nachos.threads.KThread;
+import nachos.threads.Semaphore;
+
+/**
+ * Measures the host cost of the TCB implementation chosen by
+ * <tt>TCB.implementation</tt>. Two kernel threads hand a semaphore back and
+ * forth 5 rounds of 20000 times, and the time per context switch of each
+ * round is printed. Then <tt>threads</tt> kernel threads are forked, all kept
+ * alive until the last one has started, and joined. Does not run the kernel.
+ * For example:
+ *
+ * <pre>
+ * nachos -[] conf/proj1.conf -- nachos.ag.SwitchBench -# threads=200
+ * </pre>
+ *
+ * <p>
+ * With <tt>TCB.implementation</tt> set to <tt>park</tt> or <tt>virtual</tt>,
+ * <tt>threads</tt> can go well past the 250 TCBs that <tt>monitor</tt>
+ * allows.
+ */
+public class SwitchBench extends AutoGrader {
+	@Override
+	void run() {
+		int threads = getIntegerArgument("threads");
+		String implementation = Config.getString("TCB.implementation",
+				"monitor");
+
+		final Semaphore ping = new Semaphore(0), pong = new Semaphore(0);
+		KThread partner = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < rounds * switches; i++) {
+					ping.P();
+					pong.V();
+				}
+			}
+		}).setName("partner");
+		partner.fork();
+		for (int round = 0; round < rounds; round++) {
+			long startNanos = System.nanoTime();
+			for (int i = 0; i < switches; i++) {
+				ping.V();
+				pong.P();
+			}
+			long nanos = System.nanoTime() - startNanos;
+			System.out.println(implementation + ": " + nanos / (2 * switches)
+					+ " ns per context switch");
+		}
+		partner.join();
+
+		long startNanos = System.nanoTime();
+		final Semaphore started = new Semaphore(0), release = new Semaphore(0);
+		KThread[] forked = new KThread[threads];
+		for (int i = 0; i < threads; i++) {
+			forked[i] = new KThread(new Runnable() {
+				public void run() {
+					started.V();
+					release.P();
+				}
+			}).setName("thread " + i);
+			forked[i].fork();
+		}
+		for (int i = 0; i < threads; i++)
+			started.P();
+		for (int i = 0; i < threads; i++)
+			release.V();
+		for (int i = 0; i < threads; i++)
+			forked[i].join();
+		long millis = (System.nanoTime() - startNanos) / 1000000;
+		System.out.println(implementation + ": " + threads
+				+ " live threads forked and joined in " + millis + " ms");
+
+		Machine.halt();
+	}
+
+	private static final int rounds = 5;
+	private static final int switches = 20000;
+}
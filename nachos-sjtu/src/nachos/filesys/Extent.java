@@ -0,0 +1,28 @@
+package nachos.filesys;
+
+/**
+ * Extent is a run of physically contiguous sectors,
+ * used by INode to describe where the content of a file lives
+ * and by FreeList to hand out space.
+ */
+class Extent
+{
+	/** the first sector of the run */
+	int start;
+
+	/** the number of sectors in the run */
+	int length;
+
+	/** the index of the first sector of the run within its file, if it belongs to one */
+	int offset;
+
+	Extent(int start, int length) {
+		this.start = start;
+		this.length = length;
+	}
+
+	/** the sector right after the run */
+	int end() {
+		return start + length;
+	}
+}
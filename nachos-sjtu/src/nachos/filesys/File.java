@@ -1,5 +1,6 @@
 package nachos.filesys;
 
+import nachos.machine.BufferCache;
 import nachos.machine.Disk;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
@@ -105,29 +106,28 @@ public class File extends OpenFile
   	private void copy(byte[] buffer, int offset, int length, boolean write) {
   		Lib.assertTrue(inode.readWriteLock.isHeldByCurrentThread(), "read write lock is not held when copy");
   		
+  		BufferCache cache = Machine.bufferCache();
   		while (length > 0) {
-  			if (pos % Disk.SectorSize == 0 && length >= Disk.SectorSize) {
+  			int secOffset = pos % Disk.SectorSize;
+  			int cnt;
+  			if (secOffset == 0 && length >= Disk.SectorSize) {
+  				// whole sectors go to the disk in one vectored request
+  				int[] sectors = new int[length / Disk.SectorSize];
+  				for (int i = 0; i < sectors.length; ++i)
+  					sectors[i] = inode.getSector(pos + i*Disk.SectorSize);
   				if (write)
-  					Machine.synchDisk().writeSector(inode.getSector(pos), buffer, offset);
-  				else Machine.synchDisk().readSector(inode.getSector(pos), buffer, offset);
-  				length -= Disk.SectorSize;
-  				pos += Disk.SectorSize;
-  				offset += Disk.SectorSize;
+  					cache.writeSectors(sectors, buffer, offset);
+  				else cache.readSectors(sectors, buffer, offset);
+  				cnt = sectors.length*Disk.SectorSize;
   			} else {
-  				byte[] data = new byte[Disk.SectorSize];
-  				Machine.synchDisk().readSector(inode.getSector(pos), data, 0);
-  				int secOffset = pos % Disk.SectorSize;
-  				int cnt = Math.min(length, Disk.SectorSize-secOffset);
-  				if (!write) {
-  					System.arraycopy(data, secOffset, buffer, offset, cnt);
-  				} else {
-  					System.arraycopy(buffer, offset, data, secOffset, cnt);
-  					Machine.synchDisk().writeSector(inode.getSector(pos),data, 0);
-  				}
-  				length -= cnt;
-  				pos += cnt;
-  				offset += cnt;
+  				cnt = Math.min(length, Disk.SectorSize-secOffset);
+  				if (write)
+  					cache.write(inode.getSector(pos), secOffset, buffer, offset, cnt);
+  				else cache.read(inode.getSector(pos), secOffset, buffer, offset, cnt);
   			}
+  			length -= cnt;
+  			pos += cnt;
+  			offset += cnt;
   		}
   	}
 }
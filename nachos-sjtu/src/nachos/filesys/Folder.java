@@ -1,6 +1,5 @@
 package nachos.filesys;
 
-import java.util.ArrayList;
 import java.util.Hashtable;
 
 import nachos.machine.Lib;
@@ -12,6 +11,10 @@ import nachos.threads.Lock;
  * There's a special folder called root folder with pre-defined address.
  * It's the origin from where you traverse the entire filesystem.
  * 
+ * Every folder that has been visited stays in memory, indexed by the address of its inode,
+ * so a path is resolved by looking up one component after another with getSubfolder(),
+ * without going back to the disk or building the names of the intermediate folders.
+ * 
  * @author starforever
  */
 public class Folder extends File
@@ -23,47 +26,52 @@ public class Folder extends File
   
 	/** mapping from filename to folder entry */
 	private Hashtable<String, FolderEntry> fileTable = new Hashtable<String, FolderEntry>();
-	Lock lock = new Lock();	//when add entry the lock can be held outside. o.w. only this can lock.
-	private static Hashtable<String, Folder> folderTable = new Hashtable<String, Folder>();
-	private static Lock tableLock = new Lock();
+	Lock lock = new Lock("Folder.lock");	//when add entry the lock can be held outside. o.w. only this can lock.
+	/** mapping from inode address to the folders in memory, only changed with tableLock held */
+	private static Hashtable<Integer, Folder> folderTable = new Hashtable<Integer, Folder>();
+	private static Lock tableLock = new Lock("Folder.tableLock");
 	
 	
-	public static Folder getExistingFolder(String absName) {
-		//Lib.debug(RealFileSystem.dbgFilesys, "get exsting folder: "+absName);
+	/** return the folder of the inode, loading it from the disk the first time if load is true */
+	public static Folder getFolder(INode inode, boolean load) {
 		tableLock.acquire();
-		Folder folder = folderTable.get(absName);
-		tableLock.release();
-		return folder;
-	}
-	public static Folder getFolder(String name, INode inode, boolean load) {
-		tableLock.acquire();
-		Folder ans = folderTable.get(name);
+		Folder ans = folderTable.get(inode.getAddr());
 		if (ans != null) {
 			tableLock.release();
-			Lib.debug(RealFileSystem.dbgFilesys, "exist:"+name+"\n"+folderTable.toString());
 			return ans;
 		}
 		
-		if (INode.exist(inode.getAddr())) {
-			ArrayList<Folder> folders =  new ArrayList<Folder>(folderTable.values());
-			int addr = inode.getAddr();
-			for (Folder f:folders) {
-				if (f.inode.getAddr() == addr) {
-					tableLock.release();
-					Lib.debug(RealFileSystem.dbgFilesys, "exist addr:"+name+"\n"+folderTable.toString());
-					return f;
-				}
-			}
-		}
-		
 		ans = new Folder(inode);
-		folderTable.put(name, ans);
+		folderTable.put(inode.getAddr(), ans);
 		if (load)
 			ans.load();
-		Lib.debug(RealFileSystem.dbgFilesys, "create new folder"+name+":\n"+folderTable.toString());
+		Lib.debug(RealFileSystem.dbgFilesys, "create new folder@"+inode.getAddr());
 		tableLock.release();
 		return ans;
 	}
+	
+	/**
+	 * return the folder called filename in this folder,
+	 * or null if there is no such entry or it is not a folder.
+	 */
+	public Folder getSubfolder(String filename) {
+		Integer addr = getFileSec(filename);
+		if (addr == null) return null;
+		
+		Folder ans = folderTable.get(addr);
+		if (ans != null) return ans;
+		
+		INode inode = INode.getINode(addr, INode.TYPE_FOLDER, true);
+		if (inode == null) return null;	// when the inode does not correspond to a folder
+		return getFolder(inode, true);
+	}
+	
+	/** drop a removed folder from memory, so that its address can be reused */
+	private static void forget(int addr) {
+		tableLock.acquire();
+		folderTable.remove(addr);
+		tableLock.release();
+	}
 	private Folder (INode inode)
 	{
 	    super(inode);
@@ -127,6 +135,8 @@ public class Folder extends File
     		if (inode != null) {
     			fileTable.remove(filename);
     			lock.release();
+    			if (type == INode.TYPE_FOLDER)
+    				forget(entry.addr);
     			inode.decreaseLinkCount();
     			inode.tryFree(); 
     			return true;
@@ -188,14 +198,6 @@ public class Folder extends File
 		return entry == null? null: entry.addr;
 	}
 	
-	public static boolean exist(String absName) {
-		tableLock.acquire();
-		Folder folder = folderTable.get(absName);
-		tableLock.release();
-		if (folder == null) return false;
-		return true;
-	}
-	  
 	public static void saveAll() {
 		for (Folder folder:folderTable.values()) {
 			folder.save();
@@ -1,77 +1,221 @@
 package nachos.filesys;
 
-import java.util.LinkedList;
+import java.util.Arrays;
+
 import nachos.machine.Disk;
 import nachos.machine.Lib;
 
 /**
  * FreeList is a single special file used to manage free space of the filesystem.
- * It maintains a list of sector numbers to indicate those that are available to use.
+ * It maintains a bitmap of the sectors that are available to use, packed 64 sectors to a long.
  * When there's a need to allocate a new sector in the filesystem, call allocate().
+ * To grow a file, call allocate(hint, max), which hands out a run of contiguous sectors.
  * And you should call deallocate() to free space at a appropriate time (eg. when a file is deleted) for reuse in the future.
- * 
+ *
+ * Searching for free space starts where the last allocation ended (next fit),
+ * so the usual case of allocating one file after another does not rescan the used part of the disk.
+ * save() only writes the sectors of the bitmap that changed since the last save or load.
+ *
  * @author starforever
  */
 public class FreeList extends File
 {
 	/** the static address */
 	public static int STATIC_ADDR = 0;
-  
+
   	/** size occupied in the disk (bitmap) */
   	static int size = Lib.divRoundUp(Disk.NumSectors, 8);
-  
-  	/** maintain address of all the free sectors */
-  	private LinkedList<Integer> freeList;
-  	private BitMap bitmap;
-  
+
+  	private static final int WordShift = 6;
+  	private static final int WordModMask = 0x3f;
+  	private static final int WordsPerSector = Disk.SectorSize/8;
+
+  	/** which sectors are free, 1 means free; bit i of words[w] is sector w*64+i */
+  	private long[] words;
+
+  	/** which sectors of the bitmap file have changed since the last save */
+  	private boolean[] dirty;
+
+  	/** number of free sectors */
+  	private int freeCount;
+
+  	/** where the next search for free space starts */
+  	private int cursor;
+
   	public FreeList (INode inode)
   	{
   		super(inode);
-  		freeList = new LinkedList<Integer>();
+  		words = new long[Lib.divRoundUp(Disk.NumSectors, 64)];
+  		dirty = new boolean[Lib.divRoundUp(size, Disk.SectorSize)];
+  		freeCount = 0;
+  		cursor = 0;
   	}
-  
+
   	public void init ()
   	{
-  		for (int i = 2; i < Disk.NumSectors; ++i)
-  			freeList.add(i);
+  		// everything but the inodes of the free list and the root folder is free
+  		Arrays.fill(words, -1L);
+  		words[0] &= ~3L;
+  		if ((Disk.NumSectors & WordModMask) != 0)
+  			words[words.length-1] &= (1L << Disk.NumSectors) - 1;
+  		freeCount = Disk.NumSectors-2;
+  		for (int i = 0; i < dirty.length; ++i)
+  			dirty[i] = true;
   	}
-  
+
   	/** allocate a new sector in the disk */
   	public Integer allocate ()
   	{
-  		if (freeList.isEmpty()) return null;
-  		return freeList.removeFirst();
+  		Extent run = allocate(-1, 1);
+  		if (run == null) return null;
+  		return run.start;
+  	}
+
+  	/**
+  	 * allocate a run of at most max contiguous sectors.
+  	 * the run starts at hint if that sector is free, so that a growing file stays contiguous;
+  	 * otherwise it is the first free run long enough after the cursor, or the longest one if none is.
+  	 * return null if the disk is full.
+  	 */
+  	public Extent allocate (int hint, int max)
+  	{
+  		Lib.assertTrue(max > 0);
+  		if (freeCount == 0) return null;
+
+  		Extent best = null;
+  		if (hint >= 0 && hint < Disk.NumSectors && isFree(hint)) {
+  			best = new Extent(hint, runLength(hint, max));
+  		} else {
+  			// search from the cursor to the end of the disk, then wrap around
+  			best = search(cursor, Disk.NumSectors, max, null);
+  			if (best == null || best.length < max)
+  				best = search(0, cursor, max, best);
+  		}
+
+  		for (int i = best.start; i < best.end(); ++i)
+  			markUsed(i);
+  		freeCount -= best.length;
+  		cursor = best.end() == Disk.NumSectors? 0: best.end();
+  		return best;
+  	}
+
+  	/**
+  	 * look for a free run of max sectors starting in [from, to).
+  	 * return the first such run, or the longest run seen (including best) if there is none.
+  	 */
+  	private Extent search (int from, int to, int max, Extent best)
+  	{
+  		int i = from;
+  		while (i < to) {
+  			int next = nextFree(i);
+  			if (next < 0 || next >= to) break;
+  			int len = runLength(next, max);
+  			if (best == null || len > best.length)
+  				best = new Extent(next, len);
+  			if (best.length >= max) break;
+  			i = next + len;
+  		}
+  		return best;
+  	}
+
+  	/** the first free sector at or after from, or -1 if there is none before the end of the disk */
+  	private int nextFree (int from)
+  	{
+  		int w = from >> WordShift;
+  		long bits = words[w] & (-1L << from);
+  		while (bits == 0) {
+  			if (++w == words.length) return -1;
+  			bits = words[w];
+  		}
+  		int sector = (w << WordShift) + Long.numberOfTrailingZeros(bits);
+  		return sector < Disk.NumSectors? sector: -1;
   	}
-  
+
+  	/** length of the free run starting at start, up to max */
+  	private int runLength (int start, int max)
+  	{
+  		int len = 0;
+  		int i = start;
+  		while (len < max && i < Disk.NumSectors) {
+  			int ones = Long.numberOfTrailingZeros(~(words[i >> WordShift] >>> (i & WordModMask)));
+  			if (ones == 0) break;
+  			len += ones;
+  			i += ones;
+  			if ((i & WordModMask) != 0) break;	// the run ended inside this word
+  		}
+  		return Math.min(len, Math.min(max, Disk.NumSectors-start));
+  	}
+
+  	private boolean isFree (int sec)
+  	{
+  		return (words[sec >> WordShift] & (1L << sec)) != 0;
+  	}
+
+  	private void markUsed (int sec)
+  	{
+  		words[sec >> WordShift] &= ~(1L << sec);
+  		dirty[(sec >> 3) / Disk.SectorSize] = true;
+  	}
+
   	/** deallocate a sector to be reused */
   	public void deallocate (int sec)
   	{
-  		freeList.add(sec);
+  		deallocate(sec, 1);
+  	}
+
+  	/** deallocate a run of sectors to be reused */
+  	public void deallocate (int start, int length)
+  	{
+  		for (int i = start; i < start+length; ++i) {
+  			Lib.assertTrue(i >= 2 && i < Disk.NumSectors && !isFree(i), "double free of sector "+i);
+  			words[i >> WordShift] |= 1L << i;
+  			dirty[(i >> 3) / Disk.SectorSize] = true;
+  		}
+  		freeCount += length;
   	}
-  
+
   	/** save the content of freelist to the disk */
   	public void save ()
   	{
-  		bitmap  = new BitMap(Disk.NumSectors);
-  		for (Integer i:freeList) {
-  			bitmap.set(i,false);
+  		byte[] buffer = new byte[Disk.SectorSize];
+  		// growing this file allocates from the bitmap and dirties it again, so repeat until clean
+  		boolean changed = true;
+  		while (changed) {
+  			changed = false;
+  			for (int sec = 0; sec < dirty.length; ++sec) {
+  				if (!dirty[sec]) continue;
+  				dirty[sec] = false;
+  				changed = true;
+  				int len = Math.min(Disk.SectorSize, size - sec*Disk.SectorSize);
+  				for (int i = 0; i < len; ++i)
+  					buffer[i] = (byte) (words[sec*WordsPerSector + (i >> 3)] >>> ((i & 7) << 3));
+  				write(sec*Disk.SectorSize, buffer, 0, len);
+  			}
   		}
-  		bitmap.writeBack(this);
   		inode.save();
   	}
-  
+
   	/** load the content of freelist from the disk */
   	public void load ()
   	{
-  		bitmap = new BitMap(Disk.NumSectors);
-  		bitmap.readFrom(this);
-  		for (int i = 0; i < Disk.NumSectors; ++i) {
-  			if (bitmap.isFree(i))
-  				freeList.add(i);
+  		byte[] bitmap = new byte[size];
+  		read(0, bitmap, 0, size);
+  		freeCount = 0;
+  		for (int w = 0; w < words.length; ++w) {
+  			long word = 0;
+  			for (int k = 7; k >= 0; --k) {
+  				int i = (w << 3) + k;
+  				word = (word << 8) | (i < size? bitmap[i] & 0xff: 0);
+  			}
+  			words[w] = word;
+  			freeCount += Long.bitCount(word);
   		}
+  		for (int i = 0; i < dirty.length; ++i)
+  			dirty[i] = false;
+  		cursor = 0;
   	}
-  	
+
   	public int freeSize() {
-  		return freeList.size();
+  		return freeCount;
   	}
 }
@@ -13,9 +13,13 @@ import nachos.threads.ReadWriteLock;
 
 /**
  * INode contains detail information about a file.
- * Most important among these is the list of sector numbers the file occupied, 
+ * Most important among these is the list of extents (runs of contiguous sectors) the file occupied, 
  * it's necessary to find all the pieces of the file in the filesystem.
  * 
+ * On disk, the inode sector holds fileSize, fileType, linkCount, the number of extents and
+ * the number of extension sectors, followed by the extension sector numbers and
+ * a (start, length) pair per extent. Whatever does not fit continues in the extension sectors.
+ * 
  * @author starforever
  */
 public class INode
@@ -39,9 +43,6 @@ public class INode
   public static final int TYPE_FOLDER_DEL = 5;
   
   
-  /** the reserve size (in byte) in the first sector */
-  private static final int FIRST_SEC_RESERVE = 16;
-  
   /** size of the file in bytes */
   int fileSize;
   
@@ -54,8 +55,11 @@ public class INode
   /** the number of links on the file */
   int linkCount;
   
-  /** maintain all the sector numbers this file used in order */
-  private ArrayList<Integer> secAddr;
+  /** maintain all the extents this file used in order */
+  private ArrayList<Extent> extents;
+  
+  /** the total number of sectors in extents */
+  private int numSectors;
   
   /** the first address */
   private int addr;
@@ -63,10 +67,10 @@ public class INode
   /** the extended address */
   private LinkedList<Integer> addrExt;
   ReadWriteLock readWriteLock = new ReadWriteLock();
-  private Lock lock = new Lock();
+  private Lock lock = new Lock("INode.lock");
   
   private static HashMap<Integer, INode> inodeTable = new HashMap<Integer, INode>();
-  private static Lock tableLock = new Lock();
+  private static Lock tableLock = new Lock("INode.tableLock");
   
   public static final int WordSize = 4;
   
@@ -114,7 +118,8 @@ public class INode
     	fileType = type;
     	useCount = 0;
     	linkCount = 0;
-    	secAddr = new ArrayList<Integer>();
+    	extents = new ArrayList<Extent>();
+    	numSectors = 0;
     	this.addr = addr;
     	addrExt = new LinkedList<Integer>();
   	}
@@ -124,8 +129,19 @@ public class INode
   	{	
   		//FIXME: do I need a lock here
   		Lib.assertTrue(fileType != TYPE_FOLDER_DEL && fileType != TYPE_FILE_DEL);
-	  	Lib.assertTrue(pos < secAddr.size()*Disk.SectorSize);
-	  	return secAddr.get(pos/Disk.SectorSize);
+	  	Lib.assertTrue(pos < numSectors*Disk.SectorSize);
+	  	int index = pos/Disk.SectorSize;
+	  	// binary search for the last extent that starts at or before index
+	  	int low = 0, high = extents.size()-1;
+	  	while (low < high) {
+	  		int mid = (low+high+1)/2;
+	  		if (extents.get(mid).offset <= index)
+	  			low = mid;
+	  		else
+	  			high = mid-1;
+	  	}
+	  	Extent extent = extents.get(low);
+	  	return extent.start + index - extent.offset;
   	}
   
   	private static int getFileSecNum(int size) {
@@ -161,10 +177,11 @@ public class INode
   		Lib.debug(RealFileSystem.dbgFilesys, "free inode at "+addr);
   		// FIXME: after successfully debug, this assert can be removed
   		fileSize = 0;
-  		for (Integer addr :secAddr) {
-  			FilesysKernel.realFileSystem.getFreeList().deallocate(addr);
+  		for (Extent extent :extents) {
+  			FilesysKernel.realFileSystem.getFreeList().deallocate(extent.start, extent.length);
   		}
-  		secAddr.clear();
+  		extents.clear();
+  		numSectors = 0;
   		for (Integer addr :addrExt) {
   			FilesysKernel.realFileSystem.getFreeList().deallocate(addr);
   		}
@@ -185,6 +202,7 @@ public class INode
   		
   		lock.acquire();
   		byte[] buffer = new byte[Disk.SectorSize];
+  		Machine.bufferCache().readSector(addr, buffer, 0);
   		int pos = 0;
   		fileSize = Disk.intInt(buffer, pos);
   		pos+=WordSize;
@@ -192,30 +210,31 @@ public class INode
   		pos += WordSize;
   		linkCount = Disk.intInt(buffer, pos);
   		pos += WordSize;
-  		int secAddrSize = Disk.intInt(buffer, pos);
+  		int extentsSize = Disk.intInt(buffer, pos);
+  		pos += WordSize;
   		int addrExtSize = Disk.intInt(buffer, pos);
+  		pos += WordSize;
 	  
-  		int curSec = addr;
   		addrExt.clear();
-  		secAddr.clear();
-  		Iterator<Integer> secIter = addrExt.iterator();
-  		for (int i = 0; i < addrExtSize; ++i) {
+  		extents.clear();
+  		numSectors = 0;
+  		int nextExt = 0;
+  		int[] words = new int[addrExtSize + 2*extentsSize];
+  		for (int i = 0; i < words.length; ++i) {
   			if (pos == Disk.SectorSize) {
   				pos = 0;
-  				Machine.synchDisk().readSector(curSec, buffer, 0);
-  				curSec = secIter.next();
+  				Machine.bufferCache().readSector(addrExt.get(nextExt++), buffer, 0);
   			}
-  			addrExt.add(Disk.intInt(buffer, pos));
+  			words[i] = Disk.intInt(buffer, pos);
   			pos+=WordSize;
+  			if (i < addrExtSize)
+  				addrExt.add(words[i]);
   		}
-  		for (int i = 0; i < secAddrSize; ++i) {
-  			if (pos == Disk.SectorSize) {
-  				pos = 0;
-  				Machine.synchDisk().readSector(curSec, buffer, 0);
-  				curSec = secIter.next();
-  			}
-  			secAddr.add(Disk.intInt(buffer, pos));
-  			pos+=WordSize;
+  		for (int i = addrExtSize; i < words.length; i += 2) {
+  			Extent extent = new Extent(words[i], words[i+1]);
+  			extent.offset = numSectors;
+  			extents.add(extent);
+  			numSectors += words[i+1];
   		}
   		lock.release();
 	}
@@ -225,8 +244,7 @@ public class INode
   	{
   		//FIXME the following assert can be removed  		
   		lock.acquire();
-  		int len = (5+addrExt.size()+secAddr.size())*WordSize;
-  		while (len > (1+addrExt.size())*Disk.SectorSize) {
+  		while ((5+addrExt.size()+2*extents.size())*WordSize > (1+addrExt.size())*Disk.SectorSize) {
   			addrExt.add(FilesysKernel.realFileSystem.getFreeList().allocate());
   		}
   		int pos = 0;
@@ -237,7 +255,7 @@ public class INode
   		pos += WordSize;
   		Disk.extInt(linkCount,buffer, pos);
   		pos+=WordSize;
-  		Disk.extInt(secAddr.size(),buffer, pos);
+  		Disk.extInt(extents.size(),buffer, pos);
   		pos+=WordSize;
 	  	Disk.extInt(addrExt.size(),buffer, pos);
 	  	pos+=WordSize;
@@ -248,25 +266,26 @@ public class INode
 	  	while(iter.hasNext()) {
 	  		if (pos == Disk.SectorSize) {
 	  			pos = 0;
-	  			Machine.synchDisk().writeSector(curSec, buffer, 0);
+	  			Machine.bufferCache().writeSector(curSec, buffer, 0);
 	  			curSec = secIter.next();
 	  		}
 	  		Disk.extInt(iter.next(), buffer, pos);
 	  		pos+=WordSize;
 	  	}
 	  
-	  	iter = secAddr.iterator();
-	  	while(iter.hasNext()) {
-	  		if (pos == Disk.SectorSize) {
-	  			pos = 0;
-	  			Machine.synchDisk().writeSector(curSec, buffer, 0);
-	  			curSec = secIter.next();
+	  	for (Extent extent: extents) {
+	  		for (int word: new int[] {extent.start, extent.length}) {
+	  			if (pos == Disk.SectorSize) {
+	  				pos = 0;
+	  				Machine.bufferCache().writeSector(curSec, buffer, 0);
+	  				curSec = secIter.next();
+	  			}
+	  			Disk.extInt(word, buffer, pos);
+	  			pos+=WordSize;
 	  		}
-	  		Disk.extInt(iter.next(), buffer, pos);
-	  		pos+=WordSize;
 	  	}
 	  	if (pos != 0)
-	  		Machine.synchDisk().writeSector(curSec, buffer, 0);
+	  		Machine.bufferCache().writeSector(curSec, buffer, 0);
 	  	lock.release();
   	}
   	public void decreaseLinkCount() {
@@ -320,7 +339,7 @@ public class INode
   	}
   	
   	public int getSectorNum() {
-  		return secAddr.size();
+  		return numSectors;
   	}
   	
   	int addSec(int addNum) {
@@ -329,14 +348,22 @@ public class INode
   		//FIXME: I think the following lock is not needed
   		lock.acquire();
   		int addCnt = 0;
-  		for (int i = 0; i < addNum; ++i) {
-  			Integer addr = FilesysKernel.realFileSystem.getFreeList().allocate();
-  			if (addr == null) {
+  		while (addCnt < addNum) {
+  			Extent last = extents.isEmpty()? null: extents.get(extents.size()-1);
+  			Extent run = FilesysKernel.realFileSystem.getFreeList().allocate(
+  					last == null? -1: last.end(), addNum-addCnt);
+  			if (run == null) {
   				lock.release();
   				return addCnt;
   			}
-  			secAddr.add(addr);
-  			++addCnt;
+  			if (last != null && last.end() == run.start)
+  				last.length += run.length;
+  			else {
+  				run.offset = numSectors;
+  				extents.add(run);
+  			}
+  			numSectors += run.length;
+  			addCnt += run.length;
   		}
   		lock.release();
   		return addCnt;
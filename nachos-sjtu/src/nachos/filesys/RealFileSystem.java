@@ -4,7 +4,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.ListIterator;
 
 import nachos.machine.FileSystem;
 import nachos.machine.Lib;
@@ -59,7 +58,7 @@ public class RealFileSystem implements FileSystem
     	freeList.init();
     	
     	INode inodeRootFolder = INode.getINode(Folder.STATIC_ADDR, INode.TYPE_FOLDER,false);
-    	rootFolder = Folder.getFolder(RootFolderName, inodeRootFolder, false);
+    	rootFolder = Folder.getFolder(inodeRootFolder, false);
     	importStub();
 
     	// new an empty freelist
@@ -73,7 +72,7 @@ public class RealFileSystem implements FileSystem
       freeList.load();
       
       INode inode_root_folder = INode.getINode(Folder.STATIC_ADDR, INode.TYPE_FOLDER,true);
-      rootFolder = Folder.getFolder(RootFolderName, inode_root_folder, true);
+      rootFolder = Folder.getFolder(inode_root_folder, true);
     }
   }
   
@@ -83,6 +82,7 @@ public class RealFileSystem implements FileSystem
   		freeList.save();
   		Folder.saveAll();
   		INode.saveAll();
+  		Machine.bufferCache().flush();
   	}
   
   	/** import from stub filesystem */
@@ -216,7 +216,7 @@ public class RealFileSystem implements FileSystem
   		Integer addr = result.parentFolder.getFileSec(result.name);
   		if (addr != null) {
   			INode inode = INode.getINode(addr, INode.TYPE_FOLDER, true);
-  			Folder folder = Folder.getFolder(absName, inode, true);
+  			Folder folder = Folder.getFolder(inode, true);
   			if (folder.isEmpty()) {
   				result.parentFolder.lock.release();
   				result.parentFolder.removeEntry(result.name, INode.TYPE_FOLDER);
@@ -247,7 +247,7 @@ public class RealFileSystem implements FileSystem
   		if (addr == null) return false;
   		INode inode = INode.getINode(addr, INode.TYPE_FOLDER, true);
   		if (inode == null) return false;
-  		Lib.assertTrue(Folder.getFolder(absName, inode, true) != null, 
+  		Lib.assertTrue(Folder.getFolder(inode, true) != null, 
   				"change dir to a null folder");
   		curPath = new LinkedList<String>(Arrays.asList(absName.split(PathSplitor)));
   		nameInside = absName;
@@ -267,7 +267,7 @@ public class RealFileSystem implements FileSystem
   		if (addr != null ){
   			INode inode = INode.getINode(addr, INode.TYPE_FOLDER, true);
   			if (inode != null) {
-  				Folder folder = Folder.getFolder(absName, inode, true);
+  				Folder folder = Folder.getFolder(inode, true);
   				result.parentFolder.lock.release();
   				return folder.readDir();
   			}
@@ -421,49 +421,26 @@ public class RealFileSystem implements FileSystem
     	return str;
 	}
 	
+	// walk down from the root folder one component at a time; absName must be normalized
 	protected PathResult getResult(String absName) {
 		Lib.debug(dbgFilesys, "get result of "+absName);
 		PathResult result = new PathResult();
 		
-		LinkedList<String> path = new LinkedList<String>(Arrays.asList(absName.split(PathSplitor)));
-		result.name = path.removeLast();
-		if (path.size() == 0) {
+		int last = absName.lastIndexOf(PathSplitor);
+		result.name = absName.substring(last+1);
+		if (last < 0) {
 			result.success = true;
 			result.parentFolder = null;
 			return result;
 		}
 		
-		ListIterator<String> iter = path.listIterator();
-		String absFolderName = "",lastFolderName = "";
-		if (absName.contains(nameInside)) {
-			absFolderName = lastFolderName = nameInside;
-			for (int i = 0; i < curPath.size(); ++i)
-				iter.next();
-		} else {
-			absFolderName = RootFolderName;
-			iter.next();
-		}
-		while(iter.hasNext()) {
-			lastFolderName = absFolderName;
-			absFolderName += PathSplitor+iter.next();
-			if (!Folder.exist(absFolderName)) {
-				absFolderName = lastFolderName;
-				iter.previous();
-				break;
-			}
-		}
-		
-		Folder folder = Folder.getExistingFolder(absFolderName);
-		Lib.assertTrue(folder != null, "in getResult, existingFolder:"+absFolderName+" == null");
-		String cur = null;
-		while (iter.hasNext()) {
-			cur = iter.next();
-			Lib.debug(dbgFilesys, cur);
-			Integer addr = folder.getFileSec(cur);
-			if (addr == null) return result;
-			INode inode = INode.getINode(addr, INode.TYPE_FOLDER, true);
-			if (inode == null)	return result;	// when the inode does not correspond to a folder
-			folder = Folder.getFolder(absFolderName += PathSplitor+cur, inode, true);
+		Folder folder = rootFolder;
+		int start = absName.indexOf(PathSplitor)+1;
+		while (start <= last) {
+			int end = absName.indexOf(PathSplitor, start);
+			folder = folder.getSubfolder(absName.substring(start, end));
+			if (folder == null) return result;
+			start = end+1;
 		}
 		
 		result.success = true;
@@ -0,0 +1,428 @@
+package nachos.machine;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import nachos.security.Privilege;
+import nachos.threads.Condition2;
+import nachos.threads.Lock;
+
+/**
+ * A write-back cache of disk sectors that sits on top of a
+ * <tt>SynchDisk</tt>. Up to <tt>capacity</tt> sectors are kept in memory and
+ * the least recently used one is evicted when a new sector is needed. Writes
+ * only mark the cached copy dirty; dirty sectors reach the disk when they are
+ * evicted or when <tt>flush()</tt> is called.
+ *
+ * <p>
+ * The cache lock is not held while waiting for the disk, so hits on other
+ * sectors proceed while a miss is being serviced. A buffer that is being
+ * filled or written back is marked busy, and threads that need it wait until
+ * the transfer completes.
+ *
+ * <p>
+ * The sectors that a vectored transfer sends around the cache are reserved
+ * while the transfer is in flight, so that no thread caches a sector while
+ * its contents are still being read or written on the disk.
+ */
+public class BufferCache {
+	/**
+	 * Allocate a new buffer cache.
+	 *
+	 * @param privilege
+	 *            encapsulates privileged access to the Nachos machine.
+	 * @param disk
+	 *            the disk to cache.
+	 * @param capacity
+	 *            the maximum number of sectors to keep in memory.
+	 */
+	public BufferCache(Privilege privilege, SynchDisk disk, int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		this.privilege = privilege;
+		this.disk = disk;
+		this.capacity = capacity;
+
+		buffers = new LinkedHashMap<Integer, Buffer>(capacity, 0.75f, true);
+	}
+
+	/**
+	 * Read a whole sector into <tt>data</tt>.
+	 *
+	 * @param sectorNumber
+	 *            the sector to read.
+	 * @param data
+	 *            the buffer to hold the contents of the sector.
+	 * @param index
+	 *            the offset in <tt>data</tt> at which to store the sector.
+	 */
+	public void readSector(int sectorNumber, byte[] data, int index) {
+		read(sectorNumber, 0, data, index, Disk.SectorSize);
+	}
+
+	/**
+	 * Write a whole sector from <tt>data</tt>.
+	 *
+	 * @param sectorNumber
+	 *            the sector to write.
+	 * @param data
+	 *            the new contents of the sector.
+	 * @param index
+	 *            the offset in <tt>data</tt> of the sector contents.
+	 */
+	public void writeSector(int sectorNumber, byte[] data, int index) {
+		write(sectorNumber, 0, data, index, Disk.SectorSize);
+	}
+
+	/**
+	 * Read part of a sector.
+	 *
+	 * @param sectorNumber
+	 *            the sector to read.
+	 * @param sectorOffset
+	 *            the first byte within the sector to read.
+	 * @param data
+	 *            the buffer to read into.
+	 * @param index
+	 *            the offset in <tt>data</tt> at which to store the bytes.
+	 * @param length
+	 *            the number of bytes to read.
+	 */
+	public void read(int sectorNumber, int sectorOffset, byte[] data,
+			int index, int length) {
+		Lib.assertTrue(sectorOffset >= 0 && length >= 0
+				&& sectorOffset + length <= Disk.SectorSize);
+
+		Buffer buffer = acquire(sectorNumber, true);
+		System.arraycopy(buffer.data, sectorOffset, data, index, length);
+		lock().release();
+	}
+
+	/**
+	 * Write part of a sector. Only a partial write of a sector that is not
+	 * already cached needs to read the sector from the disk.
+	 *
+	 * @param sectorNumber
+	 *            the sector to write.
+	 * @param sectorOffset
+	 *            the first byte within the sector to write.
+	 * @param data
+	 *            the buffer holding the new bytes.
+	 * @param index
+	 *            the offset in <tt>data</tt> of the new bytes.
+	 * @param length
+	 *            the number of bytes to write.
+	 */
+	public void write(int sectorNumber, int sectorOffset, byte[] data,
+			int index, int length) {
+		Lib.assertTrue(sectorOffset >= 0 && length >= 0
+				&& sectorOffset + length <= Disk.SectorSize);
+
+		Buffer buffer = acquire(sectorNumber, length < Disk.SectorSize);
+		System.arraycopy(data, index, buffer.data, sectorOffset, length);
+		buffer.dirty = true;
+		lock().release();
+	}
+
+	/**
+	 * Read several whole sectors into consecutive sector-sized slots of
+	 * <tt>data</tt>. Cached sectors are copied from the cache. The rest are
+	 * read with a single <tt>SynchDisk.readSectors()</tt> call, so that
+	 * contiguous runs cost one disk request, and are not added to the cache
+	 * so that a large transfer does not flush it.
+	 *
+	 * @param sectorNumbers
+	 *            the sectors to read, in buffer order.
+	 * @param data
+	 *            the buffer to read into.
+	 * @param index
+	 *            the offset in <tt>data</tt> of the first sector.
+	 */
+	public void readSectors(int[] sectorNumbers, byte[] data, int index) {
+		int[] misses = lookup(sectorNumbers, data, index, false);
+
+		transfer(sectorNumbers, misses, data, index, false);
+		finish(sectorNumbers, misses);
+	}
+
+	/**
+	 * Write several whole sectors from consecutive sector-sized slots of
+	 * <tt>data</tt>. Cached sectors are updated in the cache and written back
+	 * later as usual. The rest are written around the cache with a single
+	 * <tt>SynchDisk.writeSectors()</tt> call.
+	 *
+	 * @param sectorNumbers
+	 *            the sectors to write, in buffer order.
+	 * @param data
+	 *            the buffer holding the new contents.
+	 * @param index
+	 *            the offset in <tt>data</tt> of the first sector.
+	 */
+	public void writeSectors(int[] sectorNumbers, byte[] data, int index) {
+		int[] misses = lookup(sectorNumbers, data, index, true);
+
+		transfer(sectorNumbers, misses, data, index, true);
+		finish(sectorNumbers, misses);
+	}
+
+	/**
+	 * Copy the cached sectors of a vectored transfer between the cache and
+	 * <tt>data</tt>, and return the positions of the sectors that are not
+	 * cached. The sectors that are not cached are reserved until
+	 * <tt>finish()</tt> is called.
+	 */
+	private int[] lookup(int[] sectorNumbers, byte[] data, int index,
+			boolean write) {
+		int[] misses = new int[sectorNumbers.length];
+		int numMisses = 0;
+		HashSet<Integer> reserved = new HashSet<Integer>();
+
+		lock().acquire();
+
+		for (int i = 0; i < sectorNumbers.length; i++) {
+			int sector = sectorNumbers[i];
+			Buffer buffer;
+			while (true) {
+				buffer = buffers.get(sector);
+				if (buffer != null ? !buffer.busy
+						: (!inFlight.contains(sector) || reserved.contains(sector)))
+					break;
+				ioDone().sleep();
+			}
+
+			if (buffer == null) {
+				privilege.stats.numCacheMisses++;
+				misses[numMisses++] = i;
+				inFlight.add(sector);
+				reserved.add(sector);
+				continue;
+			}
+
+			privilege.stats.numCacheHits++;
+			int offset = index + i * Disk.SectorSize;
+			if (write) {
+				System.arraycopy(data, offset, buffer.data, 0, Disk.SectorSize);
+				buffer.dirty = true;
+			} else {
+				System.arraycopy(buffer.data, 0, data, offset, Disk.SectorSize);
+			}
+		}
+
+		lock().release();
+
+		int[] result = new int[numMisses];
+		System.arraycopy(misses, 0, result, 0, numMisses);
+		return result;
+	}
+
+	/**
+	 * Transfer the uncached sectors of a vectored transfer directly between
+	 * the disk and <tt>data</tt>, gathering them through a scratch buffer
+	 * unless none of the sectors were cached.
+	 */
+	private void transfer(int[] sectorNumbers, int[] misses, byte[] data,
+			int index, boolean write) {
+		if (misses.length == 0)
+			return;
+
+		if (misses.length == sectorNumbers.length) {
+			if (write)
+				disk.writeSectors(sectorNumbers, data, index);
+			else
+				disk.readSectors(sectorNumbers, data, index);
+			return;
+		}
+
+		int[] sectors = new int[misses.length];
+		byte[] scratch = new byte[misses.length * Disk.SectorSize];
+
+		for (int i = 0; i < misses.length; i++) {
+			sectors[i] = sectorNumbers[misses[i]];
+			if (write)
+				System.arraycopy(data, index + misses[i] * Disk.SectorSize,
+						scratch, i * Disk.SectorSize, Disk.SectorSize);
+		}
+
+		if (write) {
+			disk.writeSectors(sectors, scratch, 0);
+		} else {
+			disk.readSectors(sectors, scratch, 0);
+			for (int i = 0; i < misses.length; i++)
+				System.arraycopy(scratch, i * Disk.SectorSize, data, index
+						+ misses[i] * Disk.SectorSize, Disk.SectorSize);
+		}
+	}
+
+	/**
+	 * Release the sectors that <tt>lookup()</tt> reserved for a vectored
+	 * transfer, once the transfer is done.
+	 */
+	private void finish(int[] sectorNumbers, int[] misses) {
+		if (misses.length == 0)
+			return;
+
+		lock().acquire();
+		for (int i : misses)
+			inFlight.remove(sectorNumbers[i]);
+		ioDone().wakeAll();
+		lock().release();
+	}
+
+	/**
+	 * Write every dirty sector back to the disk. The sectors stay cached.
+	 */
+	public void flush() {
+		lock().acquire();
+
+		while (true) {
+			Buffer dirty = null;
+			boolean busy = false;
+
+			for (Buffer buffer : buffers.values()) {
+				if (buffer.busy) {
+					busy = true;
+				} else if (buffer.dirty) {
+					dirty = buffer;
+					break;
+				}
+			}
+
+			if (dirty != null)
+				writeBack(dirty);
+			else if (busy)
+				ioDone().sleep();
+			else
+				break;
+		}
+
+		lock().release();
+	}
+
+	/**
+	 * Find the buffer holding <tt>sectorNumber</tt>, reading it from the disk
+	 * first if it is not cached and <tt>fill</tt> is set. Waits for any
+	 * vectored transfer of the sector to finish first. Returns with the cache
+	 * lock held and the buffer not busy.
+	 */
+	private Buffer acquire(int sectorNumber, boolean fill) {
+		Lib.assertTrue(sectorNumber >= 0 && sectorNumber < Disk.NumSectors);
+
+		lock().acquire();
+
+		boolean counted = false;
+		while (true) {
+			Buffer buffer = buffers.get(sectorNumber);
+
+			if (buffer != null) {
+				if (buffer.busy) {
+					ioDone().sleep();
+					continue;
+				}
+				if (!counted)
+					privilege.stats.numCacheHits++;
+				return buffer;
+			}
+
+			if (inFlight.contains(sectorNumber)) {
+				ioDone().sleep();
+				continue;
+			}
+
+			if (!counted) {
+				privilege.stats.numCacheMisses++;
+				counted = true;
+			}
+
+			if (buffers.size() < capacity) {
+				buffer = new Buffer();
+			} else {
+				buffer = findVictim();
+				if (buffer == null) {
+					ioDone().sleep();
+					continue;
+				}
+				if (buffer.dirty) {
+					writeBack(buffer);
+					// someone may have brought our sector in meanwhile
+					continue;
+				}
+				buffers.remove(buffer.sector);
+			}
+
+			buffer.sector = sectorNumber;
+			buffers.put(sectorNumber, buffer);
+
+			if (fill) {
+				buffer.busy = true;
+				lock().release();
+				disk.readSector(sectorNumber, buffer.data, 0);
+				lock().acquire();
+				buffer.busy = false;
+				ioDone().wakeAll();
+			}
+
+			return buffer;
+		}
+	}
+
+	/**
+	 * Return the least recently used buffer that is not busy, or
+	 * <tt>null</tt> if every buffer is busy.
+	 */
+	private Buffer findVictim() {
+		for (Iterator<Buffer> i = buffers.values().iterator(); i.hasNext();) {
+			Buffer buffer = i.next();
+			if (!buffer.busy)
+				return buffer;
+		}
+		return null;
+	}
+
+	/**
+	 * Write a dirty buffer to the disk. Called and returns with the cache lock
+	 * held, but releases it during the transfer.
+	 */
+	private void writeBack(Buffer buffer) {
+		Lib.assertTrue(buffer.dirty && !buffer.busy);
+
+		buffer.busy = true;
+		buffer.dirty = false;
+		lock().release();
+		disk.writeSector(buffer.sector, buffer.data, 0);
+		lock().acquire();
+		buffer.busy = false;
+		ioDone().wakeAll();
+	}
+
+	private Lock lock() {
+		if (lock == null)
+			lock = new Lock("BufferCache.lock");
+		return lock;
+	}
+
+	private Condition2 ioDone() {
+		if (ioDone == null)
+			ioDone = new Condition2(lock(), "BufferCache.ioDone");
+		return ioDone;
+	}
+
+	private class Buffer {
+		int sector;
+		byte[] data = new byte[Disk.SectorSize];
+		boolean dirty = false;
+		boolean busy = false;
+	}
+
+	private Privilege privilege;
+	private SynchDisk disk;
+	private int capacity;
+
+	/** Cached sectors, in least to most recently used order. */
+	private LinkedHashMap<Integer, Buffer> buffers;
+	/** Sectors being transferred around the cache by a vectored transfer. */
+	private HashSet<Integer> inFlight = new HashSet<Integer>();
+
+	private Lock lock = null;
+	private Condition2 ioDone = null;
+}
@@ -42,9 +42,16 @@ package nachos.machine;
 // quickly, because its contents are in the track buffer.  Most
 // disks these days now come with a track buffer.
 //
-// The track buffer simulation can be disabled by compiling with -DNOTRACKBUF
+// The track buffer simulation is off unless "Disk.trackBuffer" is true.
+//
+// By default every request is a seek plus a read or write on the UNIX file.
+// Setting "Disk.backend" to "mapped" maps the whole file into memory
+// instead, so that requests are plain memory copies. This only changes
+// how fast the simulator runs; simulated time is the same either way.
 
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import nachos.security.Privilege;
 
@@ -58,16 +65,23 @@ import nachos.security.Privilege;
 public class Disk {
 
 	// track buffer support
-	private static final boolean NOTRACKBUF = true;
+	private boolean trackBuffer;
+
+	// The geometry is read from "Disk.sectorSize", "Disk.sectorsPerTrack"
+	// and "Disk.numTracks" when this class is first used; by default it is
+	// a 2 MB disk.
 
 	// number of bytes per disk sector
-	public static final int SectorSize = 128 * 4;
+	public static final int SectorSize = Config.getInteger("Disk.sectorSize",
+			128 * 4);
 
 	// number of sectors per disk track
-	private static final int SectorsPerTrack = 32 * 2;
+	private static final int SectorsPerTrack = Config.getInteger(
+			"Disk.sectorsPerTrack", 32 * 2);
 
 	// number of tracks per disk
-	private static final int NumTracks = 32 * 2;
+	private static final int NumTracks = Config.getInteger("Disk.numTracks",
+			32 * 2);
 
 	// total # of sectors per disk
 	public static final int NumSectors = (SectorsPerTrack * NumTracks);
@@ -76,6 +90,8 @@ public class Disk {
 
 	private RandomAccessFile file;// UNIX file for simulated disk
 
+	private MappedByteBuffer image; // the mapped file, or null
+
 	private DiskIntHandler dskHandler; // internal interrupt handler
 
 	private Runnable handler; // Interrupt handler, to be invoked
@@ -85,7 +101,7 @@ public class Disk {
 
 	private int lastSector; // The previous disk request
 
-	private int bufferInit; // When the track buffer started
+	private long bufferInit; // When the track buffer started
 
 	// being loaded
 
@@ -100,7 +116,7 @@ public class Disk {
 
 	private static final int MagicSize = 4;
 
-	public static final int DiskSize = MagicSize + (NumSectors * SectorSize);
+	public static final long DiskSize = MagicSize + ((long) NumSectors * SectorSize);
 
 	// ----------------------------------------------------------------------
 	// Disk()
@@ -122,10 +138,16 @@ public class Disk {
 
 		Lib.debug('d', "Initializing the disk\n");
 
+		Lib.assertTrue(SectorSize >= 64 && SectorSize % 8 == 0
+				&& SectorsPerTrack > 0 && NumTracks > 0
+				&& (long) SectorsPerTrack * NumTracks <= Integer.MAX_VALUE,
+				"bad disk geometry");
+
 		this.privilege = privilege;
 		handler = callWhenDone;
 		lastSector = 0;
 		bufferInit = 0;
+		trackBuffer = Config.getBoolean("Disk.trackBuffer", false);
 
 		dskHandler = new DiskIntHandler(this);
 
@@ -154,6 +176,8 @@ public class Disk {
 			}
 
 			Lib.assertTrue(magicNum == MagicNumber);
+			Lib.assertTrue(len == DiskSize,
+					"Disk file does not match the configured geometry");
 
 		} else { // file doesn't exist, create it
 
@@ -164,15 +188,30 @@ public class Disk {
 				file = new RandomAccessFile(name, "rw");
 				file.writeInt(MagicNumber); // write magic number
 
-				// need to write at end of file, so that reads will not return
-				// EOF
-				file.seek(DiskSize - 4);
-				file.writeInt(0);
+				// extend the file to its full size, so that reads will not
+				// return EOF; the sectors are left as holes until written
+				file.setLength(DiskSize);
 			} catch (IOException e) {
 				Lib.assertTrue(false, "Can't create Disk file");
 			}
 
 		}
+
+		String backend = Config.getString("Disk.backend", "file");
+		if (backend.equalsIgnoreCase("mapped")) {
+			Lib.assertTrue(DiskSize <= Integer.MAX_VALUE,
+					"Disk file too large to map");
+			try {
+				image = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+						0, DiskSize);
+			} catch (IOException e) {
+				Lib.assertTrue(false, "Can't map Disk file");
+			}
+		} else {
+			Lib.assertTrue(backend.equalsIgnoreCase("file"),
+					"unknown disk backend: " + backend);
+		}
+
 		active = false;
 	}
 
@@ -194,55 +233,92 @@ public class Disk {
 	// ----------------------------------------------------------------------
 
 	public void readRequest(int sectorNumber, byte[] data, int index) {
+		readRequest(sectorNumber, 1, data, index);
+	}
 
-		int ticks = computeLatency(sectorNumber, false);
+	public void writeRequest(int sectorNumber, byte[] data, int index) {
+		writeRequest(sectorNumber, 1, data, index);
+	}
+
+	// ----------------------------------------------------------------------
+	// readRequest/writeRequest
+	// Simulate a request to read/write "count" consecutive sectors,
+	// starting at "sectorNumber". The whole run is one request, and
+	// raises one interrupt when it completes.
+	// ----------------------------------------------------------------------
+
+	public void readRequest(int sectorNumber, int count, byte[] data, int index) {
+
+		int ticks = computeLatency(sectorNumber, count, false);
 
 		Lib.assertTrue(!active); // only one request at a time
-		Lib.assertTrue((sectorNumber >= 0) && (sectorNumber < NumSectors));
+		Lib.assertTrue((sectorNumber >= 0) && (count > 0)
+				&& (sectorNumber + count <= NumSectors));
 
 		Lib.debug('d', "Reading from sector " + sectorNumber);
 
-		try {
-			file.seek(SectorSize * sectorNumber + MagicSize);
-			file.read(data, index, SectorSize);
-		} catch (IOException e) {
-			Lib.assertTrue(false, "Can't read Disk file!");
+		if (image != null) {
+			image.position((int) offsetOf(sectorNumber));
+			image.get(data, index, SectorSize * count);
+		} else {
+			try {
+				file.seek(offsetOf(sectorNumber));
+				file.read(data, index, SectorSize * count);
+			} catch (IOException e) {
+				Lib.assertTrue(false, "Can't read Disk file!");
+			}
 		}
 
 		// if (Debug.isEnabled('d'))
 		// printSector(false, sectorNumber, data);
 
 		active = true;
-		updateLast(sectorNumber);
-		privilege.stats.numDiskReads++;
+		updateLast(sectorNumber, count, ticks);
+		privilege.stats.numDiskReads += count;
 		privilege.interrupt.schedule((long) ticks, "disk", dskHandler);
 	}
 
-	public void writeRequest(int sectorNumber, byte[] data, int index) {
+	public void writeRequest(int sectorNumber, int count, byte[] data,
+			int index) {
 
-		int ticks = computeLatency(sectorNumber, true);
+		int ticks = computeLatency(sectorNumber, count, true);
 
 		Lib.assertTrue(!active);
-		Lib.assertTrue((sectorNumber >= 0) && (sectorNumber < NumSectors));
+		Lib.assertTrue((sectorNumber >= 0) && (count > 0)
+				&& (sectorNumber + count <= NumSectors));
 
 		Lib.debug('d', "Writing to sector " + sectorNumber);
 
-		try {
-			file.seek(SectorSize * sectorNumber + MagicSize);
-			file.write(data, index, SectorSize);
-		} catch (IOException e) {
-			Lib.assertTrue(false, "Can't write Disk file!");
+		if (image != null) {
+			image.position((int) offsetOf(sectorNumber));
+			image.put(data, index, SectorSize * count);
+		} else {
+			try {
+				file.seek(offsetOf(sectorNumber));
+				file.write(data, index, SectorSize * count);
+			} catch (IOException e) {
+				Lib.assertTrue(false, "Can't write Disk file!");
+			}
 		}
 
 		// if (Debug.isEnabled('d'))
 		// printSector(true, sectorNumber, data);
 
 		active = true;
-		updateLast(sectorNumber);
-		privilege.stats.numDiskWrites++;
+		updateLast(sectorNumber, count, ticks);
+		privilege.stats.numDiskWrites += count;
 		privilege.interrupt.schedule(ticks, "Disk", dskHandler);
 	}
 
+	// ----------------------------------------------------------------------
+	// offsetOf()
+	// Return the position of "sectorNumber" in the UNIX file.
+	// ----------------------------------------------------------------------
+
+	private static long offsetOf(int sectorNumber) {
+		return MagicSize + (long) sectorNumber * SectorSize;
+	}
+
 	// ----------------------------------------------------------------------
 	// handleInterrupt()
 	// Called when it is time to invoke the disk interrupt handler,
@@ -277,23 +353,23 @@ public class Disk {
 
 	public int computeLatency(int newSector, boolean writing) {
 		timeToSeek(newSector); // computes seek and rotation
-		int timeAfter = (int) (privilege.stats.totalTicks + seek + rotation);
+		long timeAfter = privilege.stats.totalTicks + seek + rotation;
 
-		if (NOTRACKBUF == false) {
-			// turn this on if you don't want the track buffer stuff
-
-			// check if track buffer applies
+		if (trackBuffer) {
+			// check if track buffer applies: the head has passed newSector
+			// since it arrived on this track
 			if ((writing == false)
 					&& (seek == 0)
 					&& (((timeAfter - bufferInit) / Stats.RotationTime) > moduloDiff(
-							newSector, bufferInit / Stats.RotationTime))) {
+							newSector, sectorAt(bufferInit)))) {
 				Lib.debug('d', "Request latency = " + Stats.RotationTime);
+				privilege.stats.numTrackBufferHits++;
 				return Stats.RotationTime; // time to transfer sector from the
 				// track buffer
 			}
 		}
 
-		rotation += moduloDiff(newSector, timeAfter / Stats.RotationTime)
+		rotation += moduloDiff(newSector, sectorAt(timeAfter))
 				* Stats.RotationTime;
 
 		Lib.debug('d', "Request latency = " + seek + rotation
@@ -301,6 +377,25 @@ public class Disk {
 		return (seek + rotation + Stats.RotationTime);
 	}
 
+	// ----------------------------------------------------------------------
+	// computeLatency()
+	// Return how long will it take to transfer "count" consecutive sectors
+	// starting at newSector. Only the first sector pays the seek and
+	// rotational delay; after that the sectors pass under the head one per
+	// RotationTime, plus a one-track seek each time the run crosses onto
+	// the next track.
+	// ----------------------------------------------------------------------
+
+	public int computeLatency(int newSector, int count, boolean writing) {
+		int latency = computeLatency(newSector, writing);
+
+		latency += (count - 1) * Stats.RotationTime;
+		latency += (trackOf(newSector + count - 1) - trackOf(newSector))
+				* Stats.SeekTime;
+
+		return latency;
+	}
+
 	// ----------------------------------------------------------------------
 	// timeToSeek()
 	// computes how long it will take to position the disk head over the correct
@@ -328,6 +423,15 @@ public class Disk {
 
 	}
 
+	// ----------------------------------------------------------------------
+	// sectorAt()
+	// Return the sector position (within a track) under the head at "time".
+	// ----------------------------------------------------------------------
+
+	private int sectorAt(long time) {
+		return (int) ((time / Stats.RotationTime) % SectorsPerTrack);
+	}
+
 	// ----------------------------------------------------------------------
 	// moduloDiff()
 	// Return number of sectors of rotational delay between target sector
@@ -346,19 +450,50 @@ public class Disk {
 	// updateLast
 	// Keep track of the most recently requested sector. So we can know
 	// what is in the track buffer.
+	//
+	// For a run of "count" sectors starting at newSector that takes "ticks",
+	// the head is left on the track of the run's last sector. If the run
+	// crosses tracks, the track buffer starts when the run reaches that
+	// track, which is when the sectors of the run on it start to pass
+	// under the head.
 	// ----------------------------------------------------------------------
 
-	private void updateLast(int newSector) {
+	private void updateLast(int newSector, int count, int ticks) {
+		int last = newSector + count - 1;
 
-		timeToSeek(newSector); // computes seek and rotation
+		if (trackOf(last) != trackOf(newSector)) {
+			bufferInit = privilege.stats.totalTicks + ticks
+					- (last % SectorsPerTrack + 1) * Stats.RotationTime;
+		} else {
+			timeToSeek(newSector); // computes seek and rotation
 
-		if (seek != 0)
-			bufferInit = (int) (privilege.stats.totalTicks + seek + rotation);
-		lastSector = newSector;
+			if (seek != 0)
+				bufferInit = privilege.stats.totalTicks + seek + rotation;
+		}
+		lastSector = last;
 		Lib.debug('d', "Updating last sector = " + lastSector + ", "
 				+ bufferInit);
 	}
 
+	// ----------------------------------------------------------------------
+	// trackOf()
+	// Return the track that holds "sector".
+	// ----------------------------------------------------------------------
+
+	public static int trackOf(int sector) {
+		return sector / SectorsPerTrack;
+	}
+
+	// ----------------------------------------------------------------------
+	// headTrack()
+	// Return the track the disk head is over, i.e. the track of the most
+	// recently requested sector.
+	// ----------------------------------------------------------------------
+
+	public int headTrack() {
+		return trackOf(lastSector);
+	}
+
 	// ----------------------------------------------------------------------
 	// printSector()
 	// Dump the data in a disk read/write request, for debugging.
@@ -2,8 +2,9 @@
 
 package nachos.machine;
 
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.PriorityQueue;
 
 import nachos.security.Privilege;
 
@@ -37,6 +38,21 @@ import nachos.security.Privilege;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program would
  * fail in real life, you should still write properly synchronized code.
+ * 
+ * <p>
+ * Pending interrupts are kept in a timing wheel of <tt>wheelSize</tt> one-tick
+ * slots covering the near future, backed by a priority queue for interrupts
+ * that are scheduled further out. Interrupts move from the queue into the
+ * wheel as simulated time approaches them. Handlers are always invoked in
+ * order of scheduled time, and interrupts scheduled for the same time are
+ * invoked in the order they were scheduled.
+ * 
+ * <p>
+ * When nothing but the idle thread can run, the kernel calls
+ * <tt>idle()</tt>, which moves simulated time straight up to the next pending
+ * interrupt instead of letting the idle thread advance it one kernel tick per
+ * loop. This can be turned off by setting <tt>Interrupt.ticklessIdle</tt> to
+ * false.
  */
 public final class Interrupt {
 	/**
@@ -52,7 +68,12 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		heads = new PendingInterrupt[wheelSize];
+		tails = new PendingInterrupt[wheelSize];
+		occupied = new long[wheelSize / 64];
+		overflow = new PriorityQueue<PendingInterrupt>();
+
+		tickless = Config.getBoolean("Interrupt.ticklessIdle", true);
 	}
 
 	/**
@@ -103,6 +124,33 @@ public final class Interrupt {
 		return oldStatus;
 	}
 
+	/**
+	 * Tell the interrupt controller that the CPU is about to go idle: no
+	 * thread other than the idle thread is ready, and the idle thread will do
+	 * nothing but re-enable interrupts until an interrupt handler makes
+	 * another thread ready. Advances simulated time by every whole kernel
+	 * tick the idle thread would spend before the next interrupt is due, so
+	 * that the interrupt still happens on the idle thread's next tick, at the
+	 * same time it would have otherwise. Interrupts must be disabled.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		if (!tickless || earliest == Long.MAX_VALUE)
+			return;
+
+		Stats stats = privilege.stats;
+		long count = (earliest - stats.totalTicks - 1) / Stats.KernelTick;
+		if (count <= 0)
+			return;
+
+		stats.kernelTicks += Stats.KernelTick * count;
+		stats.totalTicks += Stats.KernelTick * count;
+
+		if (Lib.test(dbgInt))
+			System.out.println("== Idle until " + stats.totalTicks + " ==");
+	}
+
 	/**
 	 * Tests whether interrupts are enabled.
 	 * 
@@ -125,23 +173,36 @@ public final class Interrupt {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+		PendingInterrupt toOccur = allocate(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (Lib.test(dbgInt))
+			System.out.println("Scheduling the " + type
+					+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		if (time < cursor + wheelSize)
+			insert(toOccur);
+		else
+			overflow.add(toOccur);
+
+		if (time < earliest)
+			earliest = time;
 	}
 
 	private void tick(boolean inKernelMode) {
+		tick(inKernelMode, 1);
+	}
+
+	private void tick(boolean inKernelMode, int count) {
 		Stats stats = privilege.stats;
 
+		Lib.assertTrue(count > 0);
+
 		if (inKernelMode) {
-			stats.kernelTicks += Stats.KernelTick;
-			stats.totalTicks += Stats.KernelTick;
+			stats.kernelTicks += Stats.KernelTick * count;
+			stats.totalTicks += Stats.KernelTick * count;
 		} else {
-			stats.userTicks += Stats.UserTick;
-			stats.totalTicks += Stats.UserTick;
+			stats.userTicks += Stats.UserTick * count;
+			stats.totalTicks += Stats.UserTick * count;
 		}
 
 		if (Lib.test(dbgInt))
@@ -160,48 +221,183 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (earliest > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (earliest <= time) {
+			PendingInterrupt next = removeFirst();
 
 			Lib.assertTrue(next.time <= time);
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (Lib.test(dbgInt))
+				System.out.println("  " + next.type);
+
+			// the handler may switch threads, so recycle the event first
+			Runnable handler = next.handler;
+			release(next);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
+	private long nextPendingTime() {
+		return earliest;
+	}
+
+	/**
+	 * Add an interrupt to the wheel. Its time must lie within
+	 * <tt>wheelSize</tt> ticks of <tt>cursor</tt>. Interrupts in a slot are
+	 * kept in order of id, so that interrupts due at the same time are
+	 * invoked in the order they were scheduled.
+	 */
+	private void insert(PendingInterrupt toOccur) {
+		Lib.assertTrue(toOccur.time >= cursor
+				&& toOccur.time < cursor + wheelSize);
+
+		int slot = (int) (toOccur.time & wheelMask);
+
+		if (tails[slot] == null) {
+			heads[slot] = tails[slot] = toOccur;
+			occupied[slot >> 6] |= 1L << slot;
+		} else if (tails[slot].id < toOccur.id) {
+			tails[slot].next = toOccur;
+			tails[slot] = toOccur;
+		} else if (heads[slot].id > toOccur.id) {
+			toOccur.next = heads[slot];
+			heads[slot] = toOccur;
+		} else {
+			PendingInterrupt prev = heads[slot];
+			while (prev.next.id < toOccur.id)
+				prev = prev.next;
+			toOccur.next = prev.next;
+			prev.next = toOccur;
+		}
+
+		numInWheel++;
+	}
+
+	/**
+	 * Remove and return the earliest pending interrupt, leaving the wheel
+	 * consistent so that a handler that switches threads can safely reenter
+	 * <tt>checkIfDue()</tt>.
+	 */
+	private PendingInterrupt removeFirst() {
+		Lib.assertTrue(earliest != Long.MAX_VALUE);
+
+		if (cursor != earliest) {
+			cursor = earliest;
+			refill();
+		}
+
+		int slot = (int) (cursor & wheelMask);
+		PendingInterrupt first = heads[slot];
+
+		heads[slot] = first.next;
+		first.next = null;
+		numInWheel--;
+
+		if (heads[slot] == null) {
+			tails[slot] = null;
+			occupied[slot >> 6] &= ~(1L << slot);
+			earliest = findEarliest();
+		}
+
+		return first;
+	}
+
+	/**
+	 * Move interrupts that have come within range of the wheel out of the
+	 * overflow queue.
+	 */
+	private void refill() {
+		while (!overflow.isEmpty()
+				&& overflow.peek().time < cursor + wheelSize)
+			insert(overflow.poll());
+	}
+
+	/**
+	 * Find the time of the earliest pending interrupt by scanning the
+	 * occupied bitmap forward from <tt>cursor</tt>.
+	 */
+	private long findEarliest() {
+		if (numInWheel == 0)
+			return overflow.isEmpty() ? Long.MAX_VALUE : overflow.peek().time;
+
+		int start = (int) (cursor & wheelMask);
+		for (int i = 0; i <= occupied.length; i++) {
+			int word = ((start >> 6) + i) % occupied.length;
+			long bits = occupied[word];
+
+			// on the first word, skip slots behind the cursor; they are
+			// reached again at the end of the scan
+			if (i == 0)
+				bits &= -1L << start;
+			else if (i == occupied.length)
+				bits &= ~(-1L << start);
+
+			if (bits != 0) {
+				int slot = (word << 6) + Long.numberOfTrailingZeros(bits);
+				return cursor + ((slot - start) & wheelMask);
+			}
+		}
+
+		Lib.assertNotReached();
+		return Long.MAX_VALUE;
+	}
+
+	private PendingInterrupt allocate(long time, String type, Runnable handler) {
+		PendingInterrupt toOccur = freeList;
+
+		if (toOccur == null)
+			return new PendingInterrupt(time, type, handler);
+
+		freeList = toOccur.next;
+		toOccur.next = null;
+		toOccur.set(time, type, handler);
+
+		return toOccur;
+	}
+
+	private void release(PendingInterrupt toOccur) {
+		toOccur.type = null;
+		toOccur.handler = null;
+		toOccur.next = freeList;
+		freeList = toOccur;
+	}
+
 	private void print() {
 		System.out.println("Time: " + privilege.stats.totalTicks
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator<PendingInterrupt> i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		ArrayList<PendingInterrupt> pending = new ArrayList<PendingInterrupt>(
+				overflow);
+		for (int slot = 0; slot < wheelSize; slot++) {
+			for (PendingInterrupt toOccur = heads[slot]; toOccur != null; toOccur = toOccur.next)
+				pending.add(toOccur);
+		}
+		Collections.sort(pending);
+
+		for (PendingInterrupt toOccur : pending)
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
-		}
 
 		System.out.println("  (end of list)");
 	}
 
 	private class PendingInterrupt implements Comparable<PendingInterrupt> {
 		PendingInterrupt(long time, String type, Runnable handler) {
+			set(time, type, handler);
+		}
+
+		void set(long time, String type, Runnable handler) {
 			this.time = time;
 			this.type = type;
 			this.handler = handler;
@@ -229,6 +425,7 @@ public final class Interrupt {
 		Runnable handler;
 
 		private long id;
+		private PendingInterrupt next;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -236,7 +433,25 @@ public final class Interrupt {
 	private Privilege privilege;
 
 	private boolean enabled;
-	private TreeSet<PendingInterrupt> pending;
+
+	/** Whether <tt>idle()</tt> skips idle ticks. */
+	private boolean tickless;
+
+	/** The timing wheel; one slot per tick, heads and tails of id order. */
+	private PendingInterrupt[] heads, tails;
+	/** One bit per wheel slot, set when the slot is non-empty. */
+	private long[] occupied;
+	private int numInWheel = 0;
+	/** Interrupts due <tt>wheelSize</tt> or more ticks after the cursor. */
+	private PriorityQueue<PendingInterrupt> overflow;
+	/** No pending interrupt is due before this time. */
+	private long cursor = 0;
+	/** The time of the earliest pending interrupt. */
+	private long earliest = Long.MAX_VALUE;
+	private PendingInterrupt freeList = null;
+
+	private static final int wheelSize = 4096;
+	private static final long wheelMask = wheelSize - 1;
 
 	private static final char dbgInt = 'i';
 
@@ -248,5 +463,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, int count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
+
+		public long nextPendingTime() {
+			return Interrupt.this.nextPendingTime();
+		}
 	}
 }
@@ -0,0 +1,255 @@
+package nachos.machine;
+
+import java.security.PrivilegedAction;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeSet;
+
+import nachos.security.Privilege;
+
+/**
+ * A stand-alone driver that checks <tt>Interrupt</tt> against a reference
+ * kept in a <tt>TreeSet</tt>, which is how pending interrupts used to be
+ * stored, and measures how fast each delivers interrupts. It runs without the
+ * rest of the machine, but reads a config file like <tt>Machine</tt> does:
+ *
+ * <pre>
+ * java nachos.machine.InterruptTest [-[] config] [check [seed [steps]]]
+ * java nachos.machine.InterruptTest [-[] config] bench [devices [ticks]]
+ * </pre>
+ *
+ * <p>
+ * <tt>check</tt> schedules a random mix of near, far and very far interrupts,
+ * advances time by random kernel ticks and batches of user ticks, and after
+ * every step compares the handlers invoked so far and
+ * <tt>nextPendingTime()</tt> with the reference. The defaults fire about 1.5
+ * million interrupts. <tt>bench</tt> keeps a number of devices that each
+ * reschedule themselves when their interrupt fires, ticks one user tick at a
+ * time, and reports interrupts per second for both implementations.
+ */
+public final class InterruptTest {
+	private InterruptTest() {
+	}
+
+	public static void main(String[] args) {
+		int i = 0;
+		String configFileName = "nachos.conf";
+		if (args.length >= 2 && args[0].equals("-[]")) {
+			configFileName = args[1];
+			i = 2;
+		}
+		Config.load(configFileName);
+
+		if (args.length > i && args[i].equals("bench")) {
+			int devices = args.length > i + 1 ? Integer.parseInt(args[i + 1])
+					: 64;
+			int ticks = args.length > i + 2 ? Integer.parseInt(args[i + 2])
+					: 20000000;
+			bench(devices, ticks);
+		} else {
+			long seed = args.length > i + 1 ? Long.parseLong(args[i + 1]) : 1;
+			int steps = args.length > i + 2 ? Integer.parseInt(args[i + 2])
+					: 1500000;
+			check(seed, steps);
+		}
+	}
+
+	private static void check(long seed, int steps) {
+		Privilege privilege = newMachine();
+		Reference reference = new Reference(new Stats());
+		Random random = new Random(seed);
+
+		final ArrayList<Integer> fired = new ArrayList<Integer>();
+		final ArrayList<Integer> expected = new ArrayList<Integer>();
+		int checked = 0;
+
+		for (int step = 0; step < steps; step++) {
+			for (int i = random.nextInt(3); i > 0; i--) {
+				long when = randomDelay(random);
+				final Integer tag = reference.size;
+				privilege.interrupt.schedule(when, "check", new Runnable() {
+					public void run() {
+						fired.add(tag);
+					}
+				});
+				reference.schedule(when, new Runnable() {
+					public void run() {
+						expected.add(tag);
+					}
+				});
+			}
+
+			// mostly single ticks, now and then a long run of user ticks
+			boolean kernel = random.nextInt(4) == 0;
+			int count = kernel ? 1 : 1 + random.nextInt(random.nextInt(50) == 0
+					? 9000 : 8);
+			privilege.interrupt.tick(kernel, count);
+			reference.advance(kernel ? Stats.KernelTick : Stats.UserTick
+					* count);
+
+			Lib.assertTrue(fired.size() == expected.size(),
+					"wrong number of interrupts at step " + step);
+			for (; checked < fired.size(); checked++)
+				Lib.assertTrue(fired.get(checked).equals(expected.get(checked)),
+						"interrupts out of order at step " + step);
+			Lib.assertTrue(privilege.interrupt.nextPendingTime() == reference
+					.nextPendingTime(), "wrong next pending time at step "
+					+ step);
+		}
+
+		System.out.println("InterruptTest: " + fired.size()
+				+ " interrupts fired in the same order as the reference");
+	}
+
+	private static void bench(int devices, int ticks) {
+		for (int round = 0; round < 3; round++) {
+			final Privilege privilege = newMachine();
+			long start = System.nanoTime();
+			long count = runDevices(devices, ticks, new Device() {
+				public void schedule(long when, Runnable handler) {
+					privilege.interrupt.schedule(when, "device", handler);
+				}
+
+				public void tick() {
+					privilege.interrupt.tick(false);
+				}
+			});
+			report("Interrupt", devices, count, System.nanoTime() - start);
+
+			final Reference reference = new Reference(new Stats());
+			start = System.nanoTime();
+			count = runDevices(devices, ticks, new Device() {
+				public void schedule(long when, Runnable handler) {
+					reference.schedule(when, handler);
+				}
+
+				public void tick() {
+					reference.advance(Stats.UserTick);
+				}
+			});
+			report("TreeSet", devices, count, System.nanoTime() - start);
+		}
+	}
+
+	private static long runDevices(int devices, int ticks, final Device device) {
+		final Random random = new Random(1);
+		final long[] count = new long[1];
+
+		for (int i = 0; i < devices; i++) {
+			device.schedule(randomDelay(random), new Runnable() {
+				public void run() {
+					count[0]++;
+					device.schedule(randomDelay(random), this);
+				}
+			});
+		}
+		for (int i = 0; i < ticks; i++)
+			device.tick();
+
+		return count[0];
+	}
+
+	private static void report(String name, int devices, long count, long nanos) {
+		System.out.println(name + ": " + devices + " devices, " + count
+				+ " interrupts, " + (long) (count / (nanos / 1e9))
+				+ " interrupts/s");
+	}
+
+	/** Mostly near the cursor, sometimes past the end of the wheel. */
+	private static long randomDelay(Random random) {
+		int kind = random.nextInt(10);
+		if (kind < 5)
+			return 1 + random.nextInt(20);
+		else if (kind < 9)
+			return 100 + random.nextInt(1000);
+		else
+			return 1 + random.nextInt(20000);
+	}
+
+	/** Build an interrupt controller with privilege, and nothing else. */
+	private static Privilege newMachine() {
+		Privilege privilege = new TestPrivilege();
+		privilege.stats = new Stats();
+		new Interrupt(privilege);
+		System.out.println();
+		return privilege;
+	}
+
+	private interface Device {
+		void schedule(long when, Runnable handler);
+
+		void tick();
+	}
+
+	/**
+	 * Pending interrupts in a <tt>TreeSet</tt> ordered by time and then by
+	 * the order they were scheduled in.
+	 */
+	private static class Reference {
+		Reference(Stats stats) {
+			this.stats = stats;
+		}
+
+		void schedule(long when, Runnable handler) {
+			pending.add(new Pending(stats.totalTicks + when, size++, handler));
+		}
+
+		void advance(long ticks) {
+			stats.totalTicks += ticks;
+			while (!pending.isEmpty()
+					&& pending.first().time <= stats.totalTicks)
+				pending.pollFirst().handler.run();
+		}
+
+		long nextPendingTime() {
+			return pending.isEmpty() ? Long.MAX_VALUE : pending.first().time;
+		}
+
+		private Stats stats;
+		private TreeSet<Pending> pending = new TreeSet<Pending>();
+		/** The number of interrupts ever scheduled. */
+		int size = 0;
+	}
+
+	private static class Pending implements Comparable<Pending> {
+		Pending(long time, long id, Runnable handler) {
+			this.time = time;
+			this.id = id;
+			this.handler = handler;
+		}
+
+		public int compareTo(Pending other) {
+			if (time != other.time)
+				return time < other.time ? -1 : 1;
+			else
+				return id < other.id ? -1 : id > other.id ? 1 : 0;
+		}
+
+		long time;
+		long id;
+		Runnable handler;
+	}
+
+	private static class TestPrivilege extends Privilege {
+		public void doPrivileged(Runnable action) {
+			action.run();
+		}
+
+		public Object doPrivileged(PrivilegedAction<?> action) {
+			return action.run();
+		}
+
+		public Object doPrivileged(PrivilegedExceptionAction<?> action) {
+			try {
+				return action.run();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		public void exit(int exitStatus) {
+			System.exit(exitStatus);
+		}
+	}
+}
@@ -178,6 +178,8 @@ public final class Machine {
 			String diskFileName = Config.getString("Machine.diskFilename",
 					"nachos-disk.dat");
 			synchDisk = new SynchDisk(privilege, diskFileName);
+			bufferCache = new BufferCache(privilege, synchDisk,
+					Config.getInteger("BufferCache.capacity", 64));
 		}
 		
 		if (Config.getBoolean("Machine.stubFileSystem"))
@@ -332,6 +334,15 @@ public final class Machine {
 		return synchDisk;
 	}
 
+	/**
+	 * Return the buffer cache on top of the hardware disk.
+	 * 
+	 * @return the buffer cache, or <tt>null</tt> if the disk is not present.
+	 */
+	public static BufferCache bufferCache() {
+		return bufferCache;
+	}
+
 	/**
 	 * Return the autograder.
 	 * 
@@ -352,6 +363,7 @@ public final class Machine {
 	private static FileSystem stubFileSystem = null;
 	private static NetworkLink networkLink = null;
 	private static SynchDisk synchDisk = null;
+	private static BufferCache bufferCache = null;
 	private static AutoGrader autoGrader = null;
 
 	private static String autoGraderClassName = "nachos.ag.AutoGrader";
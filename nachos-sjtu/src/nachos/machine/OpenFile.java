@@ -150,6 +150,66 @@ public class OpenFile {
 		return -1;
 	}
 
+	/**
+	 * Read this file starting at the current file pointer into several pieces
+	 * of a buffer, as if by a <tt>read(buf, offsets[i], lengths[i])</tt> call
+	 * for each piece in turn, stopping after a piece that could not be filled.
+	 * File systems that can serve all the pieces with a single request
+	 * override this.
+	 * 
+	 * @param buf
+	 *            the buffer to store the bytes in.
+	 * @param offsets
+	 *            the offset in the buffer of each piece.
+	 * @param lengths
+	 *            the number of bytes to read into each piece.
+	 * @param count
+	 *            the number of pieces.
+	 * @return the actual number of bytes successfully read, or -1 on failure.
+	 */
+	public int read(byte[] buf, int[] offsets, int[] lengths, int count) {
+		int total = 0;
+		for (int i = 0; i < count; i++) {
+			int amount = read(buf, offsets[i], lengths[i]);
+			if (amount == -1)
+				return total == 0 ? -1 : total;
+			total += amount;
+			if (amount < lengths[i])
+				break;
+		}
+		return total;
+	}
+
+	/**
+	 * Write this file starting at the current file pointer from several pieces
+	 * of a buffer, as if by a <tt>write(buf, offsets[i], lengths[i])</tt>
+	 * call for each piece in turn, stopping after a piece that could not be
+	 * written completely.
+	 * 
+	 * @param buf
+	 *            the buffer to get the bytes from.
+	 * @param offsets
+	 *            the offset in the buffer of each piece.
+	 * @param lengths
+	 *            the number of bytes to write from each piece.
+	 * @param count
+	 *            the number of pieces.
+	 * @return the actual number of bytes successfully written, or -1 on
+	 *         failure.
+	 */
+	public int write(byte[] buf, int[] offsets, int[] lengths, int count) {
+		int total = 0;
+		for (int i = 0; i < count; i++) {
+			int amount = write(buf, offsets[i], lengths[i]);
+			if (amount == -1)
+				return total == 0 ? -1 : total;
+			total += amount;
+			if (amount < lengths[i])
+				break;
+		}
+		return total;
+	}
+
 	private FileSystem fileSystem;
 	private String name;
 }
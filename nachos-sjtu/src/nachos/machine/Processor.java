@@ -2,6 +2,8 @@
 
 package nachos.machine;
 
+import java.util.Arrays;
+
 import nachos.security.*;
 
 /**
@@ -54,6 +56,20 @@ public final class Processor {
 		} else {
 			translations = null;
 		}
+
+		basicBlocks = Config.getBoolean("Processor.basicBlocks", false);
+
+		// tracing needs every translation to go through translate()
+		if (!Lib.test(dbgProcessor)) {
+			fastVpns = new int[fastSize];
+			fastPpns = new int[fastSize];
+			fastEntries = new TranslationEntry[fastSize];
+		}
+
+		if (Config.getBoolean("Processor.decodeCache", false))
+			decodedPages = new Decoded[numPhysPages][];
+		else
+			decodedPages = null;
 	}
 
 	/**
@@ -93,6 +109,11 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		if (basicBlocks) {
+			while (true)
+				runBlock(inst);
+		}
+
 		while (true) {
 			try {
 				inst.run();
@@ -104,6 +125,54 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Execute instructions up to the end of the current basic block, and then
+	 * advance the simulated time for all of them with a single tick.
+	 * 
+	 * <p>
+	 * A block ends after a taken branch or jump has completed its delay slot,
+	 * after an instruction that raised an exception, or after the instruction
+	 * whose tick brings the next pending interrupt due. Interrupts therefore
+	 * occur at exactly the same instruction as they would if every
+	 * instruction were ticked separately.
+	 * 
+	 * @param inst
+	 *            the instruction state to execute with.
+	 */
+	private void runBlock(Instruction inst) {
+		// the number of instructions whose ticks bring the next interrupt due
+		long ticks = privilege.interrupt.nextPendingTime()
+				- privilege.stats.totalTicks;
+		long budget = ticks / Stats.UserTick
+				+ (ticks % Stats.UserTick == 0 ? 0 : 1);
+		int count = 0;
+
+		while (true) {
+			int pc = registers[regPC];
+
+			try {
+				inst.run();
+			} catch (MipsException e) {
+				// account for the instructions before the faulting one, so
+				// the kernel sees the correct time
+				if (count > 0)
+					privilege.interrupt.tick(false, count);
+
+				e.handle();
+
+				privilege.interrupt.tick(false);
+				return;
+			}
+
+			count++;
+
+			if (count >= budget || registers[regPC] != pc + 4) {
+				privilege.interrupt.tick(false, count);
+				return;
+			}
+		}
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -178,6 +247,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		flushFastTranslations();
 	}
 
 	/**
@@ -221,6 +291,13 @@ public final class Processor {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
+		// forget both the replaced entry and any other entry for the new vpn,
+		// since the TLB may now match that vpn in a different place
+		if (fastEntries != null) {
+			fastEntries[translations[number].vpn & (fastSize - 1)] = null;
+			fastEntries[entry.vpn & (fastSize - 1)] = null;
+		}
+
 		translations[number] = new TranslationEntry(entry);
 	}
 
@@ -306,6 +383,34 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
+		if (fastEntries != null && (vaddr & (size - 1)) == 0) {
+			int vpn = vaddr >>> pageShift;
+			int slot = vpn & (fastSize - 1);
+			TranslationEntry entry = fastEntries[slot];
+
+			if (entry != null && fastVpns[slot] == vpn && entry.valid
+					&& entry.ppn == fastPpns[slot]
+					&& (usingTLB || translations[vpn] == entry)
+					&& !(writing && entry.readOnly)) {
+				entry.used = true;
+				if (writing)
+					entry.dirty = true;
+
+				return (entry.ppn << pageShift) | (vaddr & (pageSize - 1));
+			}
+		}
+
+		return translateSlow(vaddr, size, writing);
+	}
+
+	/**
+	 * Translate a virtual address without consulting the fast translations,
+	 * and remember the resulting translation if it succeeds.
+	 * 
+	 * @see #translate
+	 */
+	private int translateSlow(int vaddr, int size, boolean writing)
+			throws MipsException {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -368,11 +473,26 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
+		if (fastEntries != null) {
+			int slot = vpn & (fastSize - 1);
+			fastVpns[slot] = vpn;
+			fastPpns[slot] = ppn;
+			fastEntries[slot] = entry;
+		}
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
 
+	/**
+	 * Forget every remembered translation.
+	 */
+	private void flushFastTranslations() {
+		if (fastEntries != null)
+			Arrays.fill(fastEntries, null);
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -561,8 +681,25 @@ public final class Processor {
 	 */
 	private TranslationEntry[] translations;
 
+	/**
+	 * A direct-mapped cache of recently used translations, indexed by the low
+	 * bits of the virtual page number, or <tt>null</tt> when tracing
+	 * translations. A remembered entry is only trusted while it is still
+	 * valid, still maps the same physical page, and (when there is no TLB) is
+	 * still the entry in the current page table.
+	 */
+	private TranslationEntry[] fastEntries;
+	/** The virtual page number each fast translation was made for. */
+	private int[] fastVpns;
+	/** The physical page number each fast translation was checked against. */
+	private int[] fastPpns;
+	/** Number of fast translations. Must be a power of two. */
+	private static final int fastSize = 64;
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
+	/** Number of offset bits in an address. */
+	private static final int pageShift = Integer.numberOfTrailingZeros(pageSize);
 	/** Number of pages in a 32-bit address space. */
 	public static final int maxPages = (int) (0x100000000L / pageSize);
 	/** Number of physical pages in memory. */
@@ -573,6 +710,18 @@ public final class Processor {
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
+	/** <tt>true</tt> if user time is advanced once per basic block. */
+	private boolean basicBlocks;
+
+	/**
+	 * Decoded instructions, indexed by physical page and then by word within
+	 * the page, or <tt>null</tt> if the decode cache is disabled. Each entry
+	 * remembers the instruction word it was decoded from, so an entry whose
+	 * word has since been overwritten (by a store, or by the kernel through
+	 * <tt>getMemory()</tt>) is simply decoded again.
+	 */
+	private Decoded[][] decodedPages;
+
 	private static final char dbgProcessor = 'p';
 	private static final char dbgDisassemble = 'm';
 	private static final char dbgFullDisassemble = 'M';
@@ -632,7 +781,7 @@ public final class Processor {
 		}
 
 		private boolean test(int flag) {
-			return Lib.test(flag, flags);
+			return Lib.test(flag, decoded.flags);
 		}
 
 		private void fetch() throws MipsException {
@@ -641,92 +790,68 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (decodedPages == null) {
+				value = readMem(registers[regPC], 4);
+				return;
+			}
+
+			paddr = translate(registers[regPC], 4, false);
+			value = Lib.bytesToInt(mainMemory, paddr, 4);
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			if (decodedPages == null) {
+				scratch.decode(value);
+				decoded = scratch;
+			} else {
+				int ppn = paddr / pageSize;
+				int index = (paddr % pageSize) / 4;
+
+				Decoded[] page = decodedPages[ppn];
+				if (page == null) {
+					page = new Decoded[pageSize / 4];
+					decodedPages[ppn] = page;
+				}
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
+				decoded = page[index];
+				if (decoded == null || decoded.value != value) {
+					decoded = new Decoded();
+					decoded.decode(value);
+					page[index] = decoded;
+				}
 			}
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
-
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
-			if (format == Mips.RFMT)
-				jtarget = registers[rs];
-			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
-			else if (format == Mips.JFMT)
-				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+			if (decoded.format == Mips.RFMT)
+				jtarget = registers[decoded.rs];
+			else if (decoded.format == Mips.IFMT)
+				jtarget = registers[regNextPC] + decoded.offset;
+			else if (decoded.format == Mips.JFMT)
+				jtarget = (registers[regNextPC] & 0xF0000000)
+						| (decoded.target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
-			addr = registers[rs] + imm;
+			addr = registers[decoded.rs] + decoded.imm;
 
 			// get src1
 			if (test(Mips.SRC1SH))
-				src1 = sh;
+				src1 = decoded.sh;
 			else
-				src1 = registers[rs];
+				src1 = registers[decoded.rs];
 
 			// get src2
 			if (test(Mips.SRC2IMM))
-				src2 = imm;
+				src2 = decoded.imm;
 			else
-				src2 = registers[rt];
+				src2 = registers[decoded.rt];
 
 			if (test(Mips.UNSIGNED)) {
 				src1 &= 0xFFFFFFFFL;
@@ -743,22 +868,22 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			if (operation == Mips.INVALID) {
-				System.out.print("invalid: op=" + Lib.toHexString(op, 2)
-						+ " rs=" + Lib.toHexString(rs, 2) + " rt="
-						+ Lib.toHexString(rt, 2) + " rd="
-						+ Lib.toHexString(rd, 2) + " sh="
-						+ Lib.toHexString(sh, 2) + " func="
-						+ Lib.toHexString(func, 2) + "\n");
+			if (decoded.operation == Mips.INVALID) {
+				System.out.print("invalid: op=" + Lib.toHexString(decoded.op, 2)
+						+ " rs=" + Lib.toHexString(decoded.rs, 2) + " rt="
+						+ Lib.toHexString(decoded.rt, 2) + " rd="
+						+ Lib.toHexString(decoded.rd, 2) + " sh="
+						+ Lib.toHexString(decoded.sh, 2) + " func="
+						+ Lib.toHexString(decoded.func, 2) + "\n");
 				return;
 			}
 
-			int spaceIndex = name.indexOf(' ');
+			int spaceIndex = decoded.name.indexOf(' ');
 			Lib.assertTrue(spaceIndex != -1
-					&& spaceIndex == name.lastIndexOf(' '));
+					&& spaceIndex == decoded.name.lastIndexOf(' '));
 
-			String instname = name.substring(0, spaceIndex);
-			char[] args = name.substring(spaceIndex + 1).toCharArray();
+			String instname = decoded.name.substring(0, spaceIndex);
+			char[] args = decoded.name.substring(spaceIndex + 1).toCharArray();
 
 			System.out.print(instname + "\t");
 
@@ -767,57 +892,57 @@ public final class Processor {
 			for (int i = 0; i < args.length; i++) {
 				switch (args[i]) {
 				case Mips.RS:
-					System.out.print("$" + rs);
+					System.out.print("$" + decoded.rs);
 					minCharsPrinted += 2;
 					maxCharsPrinted += 3;
 
 					if (Lib.test(dbgFullDisassemble)) {
-						System.out
-								.print("#0x" + Lib.toHexString(registers[rs]));
+						System.out.print("#0x"
+								+ Lib.toHexString(registers[decoded.rs]));
 						minCharsPrinted += 11;
 						maxCharsPrinted += 11;
 					}
 					break;
 				case Mips.RT:
-					System.out.print("$" + rt);
+					System.out.print("$" + decoded.rt);
 					minCharsPrinted += 2;
 					maxCharsPrinted += 3;
 
 					if (Lib.test(dbgFullDisassemble)
 							&& (i != 0 || !test(Mips.DST))
 							&& !test(Mips.DELAYEDLOAD)) {
-						System.out
-								.print("#0x" + Lib.toHexString(registers[rt]));
+						System.out.print("#0x"
+								+ Lib.toHexString(registers[decoded.rt]));
 						minCharsPrinted += 11;
 						maxCharsPrinted += 11;
 					}
 					break;
 				case Mips.RETURNADDRESS:
-					if (rd == 31)
+					if (decoded.rd == 31)
 						continue;
 				case Mips.RD:
-					System.out.print("$" + rd);
+					System.out.print("$" + decoded.rd);
 					minCharsPrinted += 2;
 					maxCharsPrinted += 3;
 					break;
 				case Mips.IMM:
-					System.out.print(imm);
+					System.out.print(decoded.imm);
 					minCharsPrinted += 1;
 					maxCharsPrinted += 6;
 					break;
 				case Mips.SHIFTAMOUNT:
-					System.out.print(sh);
+					System.out.print(decoded.sh);
 					minCharsPrinted += 1;
 					maxCharsPrinted += 2;
 					break;
 				case Mips.ADDR:
-					System.out.print(imm + "($" + rs);
+					System.out.print(decoded.imm + "($" + decoded.rs);
 					minCharsPrinted += 4;
 					maxCharsPrinted += 5;
 
 					if (Lib.test(dbgFullDisassemble)) {
-						System.out
-								.print("#0x" + Lib.toHexString(registers[rs]));
+						System.out.print("#0x"
+								+ Lib.toHexString(registers[decoded.rs]));
 						minCharsPrinted += 11;
 						maxCharsPrinted += 11;
 					}
@@ -863,7 +988,7 @@ public final class Processor {
 			int value;
 			int preserved;
 
-			switch (operation) {
+			switch (decoded.operation) {
 			case Mips.ADD:
 				dst = src1 + src2;
 				break;
@@ -913,7 +1038,7 @@ public final class Processor {
 				dst = src1 ^ src2;
 				break;
 			case Mips.LUI:
-				dst = imm << 16;
+				dst = decoded.imm << 16;
 				break;
 
 			case Mips.BEQ:
@@ -955,10 +1080,10 @@ public final class Processor {
 				throw new MipsException(exceptionSyscall);
 
 			case Mips.LOAD:
-				value = readMem(addr, size);
+				value = readMem(addr, decoded.size);
 
 				if (!test(Mips.UNSIGNED))
-					dst = Lib.extend(value, 0, size * 8);
+					dst = Lib.extend(value, 0, decoded.size * 8);
 				else
 					dst = value;
 
@@ -988,7 +1113,7 @@ public final class Processor {
 				break;
 
 			case Mips.STORE:
-				writeMem(addr, size, (int) src2);
+				writeMem(addr, decoded.size, (int) src2);
 				break;
 
 			case Mips.SWL:
@@ -1042,17 +1167,18 @@ public final class Processor {
 				throw new MipsException(exceptionOverflow);
 
 			if (test(Mips.DELAYEDLOAD))
-				delayedLoad(dstReg, (int) dst, mask);
+				delayedLoad(decoded.dstReg, (int) dst, mask);
 			else
 				finishLoad();
 
 			if (test(Mips.LINK))
 				dst = nextPC;
 
-			if (test(Mips.DST) && dstReg != 0)
-				registers[dstReg] = (int) dst;
+			if (test(Mips.DST) && decoded.dstReg != 0)
+				registers[decoded.dstReg] = (int) dst;
 
-			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD))
+					&& decoded.dstReg != 0) {
 				if (Lib.test(dbgFullDisassemble)) {
 					System.out.print("#0x" + Lib.toHexString((int) dst));
 					if (test(Mips.DELAYEDLOAD))
@@ -1072,15 +1198,91 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
-		int operation, format, flags;
-		String name;
+		int value, paddr;
+		Decoded decoded;
 
-		int size;
-		int addr, nextPC, jtarget, dstReg;
+		int addr, nextPC, jtarget;
 		long src1, src2, dst;
 		int mask;
 		boolean branch;
+
+		/** Reused for every instruction when the decode cache is disabled. */
+		private Decoded scratch = new Decoded();
+	}
+
+	/**
+	 * The fields of an instruction that depend only on the instruction word,
+	 * and not on the contents of any register.
+	 */
+	private static class Decoded {
+		void decode(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			imm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (test(Mips.SIZEB))
+				size = 1;
+			else if (test(Mips.SIZEH))
+				size = 2;
+			else if (test(Mips.SIZEW))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (test(Mips.DSTRA))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// get branch offset
+			offset = imm << 2;
+
+			// get imm
+			if (test(Mips.UNSIGNED)) {
+				imm &= 0xFFFF;
+			}
+		}
+
+		private boolean test(int flag) {
+			return Lib.test(flag, flags);
+		}
+
+		int value, op, rs, rt, rd, sh, func, target, imm, offset;
+		int operation, format, flags;
+		String name;
+
+		int size, dstReg;
 	}
 
 	private static class Mips {
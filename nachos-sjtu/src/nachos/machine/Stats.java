@@ -2,6 +2,8 @@
 
 package nachos.machine;
 
+import java.util.LinkedList;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -18,16 +20,42 @@ public final class Stats {
 	public void print() {
 		System.out.println("Ticks: total " + totalTicks + ", kernel "
 				+ kernelTicks + ", user " + userTicks);
-		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
-				+ numDiskWrites);
+		System.out.println("Disk I/O: sectors read " + numDiskReads
+				+ ", sectors written " + numDiskWrites + ", requests "
+				+ numDiskRequests);
+		System.out.println("Disk scheduling: average seek "
+				+ (numDiskRequests == 0 ? 0 : numDiskSeekTracks
+						/ numDiskRequests) + " tracks, disk ticks "
+				+ diskTicks);
+		System.out.println("Track buffer: hits " + numTrackBufferHits
+				+ " requests");
+		System.out.println("Buffer cache: hits " + numCacheHits
+				+ ", misses " + numCacheMisses);
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+
+		for (Runnable report : reports)
+			report.run();
 	}
 
+	/**
+	 * Add a report to print after these statistics. The kernel has no access
+	 * to the machine's <tt>Stats</tt> object, so this is how it prints
+	 * statistics of its own.
+	 * 
+	 * @param report
+	 *            prints the report when run.
+	 */
+	public static void addReport(Runnable report) {
+		reports.add(report);
+	}
+
+	private static LinkedList<Runnable> reports = new LinkedList<Runnable>();
+
 	/**
 	 * The total amount of simulated time that has passed since Nachos started.
 	 */
@@ -45,6 +73,21 @@ public final class Stats {
 	public int numDiskReads = 0;
 	/** The total number of sectors Nachos has written to the simulated disk. */
 	public int numDiskWrites = 0;
+	/** The total number of requests the disk has been given. */
+	public int numDiskRequests = 0;
+	/** The total number of tracks the disk head has moved. */
+	public long numDiskSeekTracks = 0;
+	/** The total simulated time from issuing disk requests to completion. */
+	public long diskTicks = 0;
+	/**
+	 * The total number of read requests whose first sector was served from
+	 * the track buffer.
+	 */
+	public int numTrackBufferHits = 0;
+	/** The total number of sector lookups that hit in the buffer cache. */
+	public int numCacheHits = 0;
+	/** The total number of sector lookups that missed in the buffer cache. */
+	public int numCacheMisses = 0;
 	/** The total number of characters Nachos has read from the console. */
 	public int numConsoleReads = 0;
 	/** The total number of characters Nachos has written to the console. */
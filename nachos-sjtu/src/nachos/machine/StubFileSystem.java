@@ -9,10 +9,21 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
 
 /**
  * This class implements a file system that redirects all requests to the host
  * operating system's file system.
+ *
+ * <p>
+ * By default every request blocks the calling thread on the alarm for a fixed
+ * delay, then seeks and reads or writes its own <tt>RandomAccessFile</tt>.
+ * When <tt>StubFileSystem.async</tt> is true, all open files with the same
+ * name share one host <tt>FileChannel</tt>, transfers use positional I/O, and
+ * each request completes through a device interrupt after the same delay, in
+ * the same way as a disk request.
  */
 public class StubFileSystem implements FileSystem {
 	/**
@@ -26,6 +37,8 @@ public class StubFileSystem implements FileSystem {
 	public StubFileSystem(Privilege privilege, File directory) {
 		this.privilege = privilege;
 		this.directory = directory;
+
+		async = Config.getBoolean("StubFileSystem.async", false);
 	}
 
 	public OpenFile open(String name, boolean truncate) {
@@ -35,7 +48,10 @@ public class StubFileSystem implements FileSystem {
 		delay();
 
 		try {
-			return new StubOpenFile(name, truncate);
+			if (async)
+				return new PooledOpenFile(name, truncate);
+			else
+				return new StubOpenFile(name, truncate);
 		} catch (IOException e) {
 			return null;
 		}
@@ -49,6 +65,12 @@ public class StubFileSystem implements FileSystem {
 
 		FileRemover fr = new FileRemover(new File(directory, name));
 		privilege.doPrivileged(fr);
+
+		// later opens of this name must not reuse the removed file
+		Handle handle = handles.remove(name);
+		if (handle != null)
+			handle.removed = true;
+
 		return fr.successful;
 	}
 
@@ -73,6 +95,18 @@ public class StubFileSystem implements FileSystem {
 		if (usingRealFilesystem())
 			return;
 
+		if (async) {
+			final Semaphore done = new Semaphore(0);
+			privilege.interrupt.schedule(delayTicks, "stub file system",
+					new Runnable() {
+						public void run() {
+							done.V();
+						}
+					});
+			done.P();
+			return;
+		}
+
 		long time = Machine.timer().getTime();
 		int amount = 1000;
 		ThreadedKernel.alarm.waitUntil(amount);
@@ -150,6 +184,49 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
+		public int read(byte[] buf, int[] offsets, int[] lengths, int count) {
+			if (!open)
+				return -1;
+
+			try {
+				delay();
+
+				file.seek(position);
+				int total = 0;
+				for (int i = 0; i < count; i++) {
+					int amount = Math.max(0, file.read(buf, offsets[i],
+							lengths[i]));
+					total += amount;
+					if (amount < lengths[i])
+						break;
+				}
+				position += total;
+				return total;
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+
+		public int write(byte[] buf, int[] offsets, int[] lengths, int count) {
+			if (!open)
+				return -1;
+
+			try {
+				delay();
+
+				file.seek(position);
+				int total = 0;
+				for (int i = 0; i < count; i++) {
+					file.write(buf, offsets[i], lengths[i]);
+					total += lengths[i];
+				}
+				position += total;
+				return total;
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+
 		public int length() {
 			try {
 				return (int) file.length();
@@ -174,11 +251,193 @@ public class StubFileSystem implements FileSystem {
 		private boolean open = false;
 	}
 
+	/**
+	 * A host file shared by every <tt>PooledOpenFile</tt> with the same name.
+	 */
+	private class Handle {
+		Handle(RandomAccessFile file) {
+			this.file = file;
+			channel = file.getChannel();
+		}
+
+		void release() {
+			if (--refs > 0)
+				return;
+
+			if (!removed)
+				handles.remove(name);
+
+			try {
+				file.close();
+			} catch (IOException e) {
+			}
+		}
+
+		String name;
+		RandomAccessFile file;
+		FileChannel channel;
+		int refs = 0;
+		boolean removed = false;
+	}
+
+	private class PooledOpenFile extends OpenFileWithPosition {
+		PooledOpenFile(final String name, final boolean truncate)
+				throws IOException {
+			super(StubFileSystem.this, name);
+
+			if (openCount == maxOpenFiles)
+				throw new IOException();
+
+			handle = handles.get(name);
+			if (handle == null) {
+				final File f = new File(directory, name);
+
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						try {
+							if (truncate || f.exists())
+								handle = new Handle(new RandomAccessFile(f,
+										"rw"));
+						} catch (IOException e) {
+						}
+					}
+				});
+
+				if (handle == null)
+					throw new IOException();
+
+				handle.name = name;
+				handles.put(name, handle);
+			}
+
+			if (truncate)
+				handle.channel.truncate(0);
+
+			handle.refs++;
+			open = true;
+			openCount++;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (!open)
+				return -1;
+
+			try {
+				ByteBuffer dst = ByteBuffer.wrap(buf, offset, length);
+				while (dst.hasRemaining()) {
+					int n = handle.channel.read(dst, pos + dst.position()
+							- offset);
+					if (n < 0)
+						break;
+				}
+
+				delay();
+				return dst.position() - offset;
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (!open)
+				return -1;
+
+			try {
+				ByteBuffer src = ByteBuffer.wrap(buf, offset, length);
+				while (src.hasRemaining())
+					handle.channel.write(src, pos + src.position() - offset);
+
+				delay();
+				return length;
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+
+		public int read(byte[] buf, int[] offsets, int[] lengths, int count) {
+			if (!open)
+				return -1;
+
+			try {
+				int total = 0;
+				for (int i = 0; i < count; i++) {
+					ByteBuffer dst = ByteBuffer.wrap(buf, offsets[i],
+							lengths[i]);
+					while (dst.hasRemaining()) {
+						int n = handle.channel.read(dst, position + total
+								+ dst.position() - offsets[i]);
+						if (n < 0)
+							break;
+					}
+					int amount = dst.position() - offsets[i];
+					total += amount;
+					if (amount < lengths[i])
+						break;
+				}
+
+				delay();
+				position += total;
+				return total;
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+
+		public int write(byte[] buf, int[] offsets, int[] lengths, int count) {
+			if (!open)
+				return -1;
+
+			try {
+				int total = 0;
+				for (int i = 0; i < count; i++) {
+					ByteBuffer src = ByteBuffer.wrap(buf, offsets[i],
+							lengths[i]);
+					while (src.hasRemaining())
+						handle.channel.write(src, position + total
+								+ src.position() - offsets[i]);
+					total += lengths[i];
+				}
+
+				delay();
+				position += total;
+				return total;
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+
+		public int length() {
+			try {
+				return (int) handle.channel.size();
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+
+		public void close() {
+			if (open) {
+				open = false;
+				openCount--;
+				handle.release();
+			}
+		}
+
+		private Handle handle = null;
+		private boolean open = false;
+	}
+
 	private int openCount = 0;
 	private static final int maxOpenFiles = 16;
 
+	/** Simulated time taken by each request. */
+	private static final int delayTicks = 1000;
+
 	private Privilege privilege;
 	private File directory;
+	private boolean async;
+
+	/** Host files that are open, by name. */
+	private HashMap<String, Handle> handles = new HashMap<String, Handle>();
 	private static Boolean usingRealFilesystem;
 
 	private static boolean checkName(String name) {
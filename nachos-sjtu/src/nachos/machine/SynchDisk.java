@@ -1,49 +1,58 @@
 package nachos.machine;
 
+import java.util.LinkedList;
+
 import nachos.security.Privilege;
-import nachos.threads.Lock;
 import nachos.threads.Semaphore;
 
 /**
  * @author Kang Zhang
- * 
+ *
  *         This file is derived from the code by 1998 Rice University and
  *         1992-1993 The Regents of the University of California.
  */
 
 // SynchDisk.java
-// Class for synchronous access of the disk. The physical disk
-// is an asynchronous device (disk requests return immediately, and
-// an interrupt happens later on). This is a layer on top of
-// the disk providing a synchronous interface (requests wait until
-// the request completes).
-//
-// Use a semaphore to synchronize the interrupt handlers with the
-// pending requests. And, because the physical disk can only
-// handle one operation at a time, use a lock to enforce mutual
-// exclusion.
 // The following class defines a "synchronous" disk abstraction.
 // As with other I/O devices, the raw physical disk is an asynchronous device --
 // requests to read or write portions of the disk return immediately,
 // and an interrupt occurs later to signal that the operation completed.
-// (Also, the physical characteristics of the disk device assume that
-// only one operation can be requested at a time).
-//
 // This class provides the abstraction that for any individual thread
 // making a request, it waits around until the operation finishes before
 // returning.
+//
+// The physical disk can only handle one operation at a time, so requests
+// from concurrent threads are kept in a queue. A request covers a run of
+// one or more contiguous sectors, and carries its own semaphore, so a
+// thread blocks only until its own requests complete.
+// When the disk finishes a request, the interrupt handler picks the next
+// one according to the scheduling policy set by "SynchDisk.scheduler":
+//
+// fifo -- in order of arrival (the default)
+// sstf -- shortest seek time first
+// scan -- elevator; sweep in one direction, reversing at the last request
+// clook -- sweep upwards only, then jump back to the lowest request
+//
+// The queue is protected by disabling interrupts, since it is also
+// touched by the interrupt handler.
 public class SynchDisk {
 
 	Disk disk; // Raw disk device
 
-	Semaphore semaphore; // To synchronize requesting thread
+	Privilege privilege;
+
+	LinkedList<Request> queue; // Requests waiting for the disk
+
+	Request current; // The request the disk is working on
 
-	// with the interrupt handler
-	Lock lock; // Only one read/write request
+	int policy; // How to pick the next request
+
+	boolean sweepingUp; // Direction of the scan policy
 
-	// can be sent to the disk at a time
 	SynchDiskIntHandler handler; // internal handler
 
+	static final int FIFO = 0, SSTF = 1, SCAN = 2, CLOOK = 3;
+
 	// ----------------------------------------------------------------------
 	// SynchDisk
 	// Initialize the synchronous interface to the physical disk, in turn
@@ -55,9 +64,25 @@ public class SynchDisk {
 
 	public SynchDisk(Privilege privilege, String name) {
 
+		this.privilege = privilege;
 		handler = new SynchDiskIntHandler(this);
 		disk = new Disk(privilege, name, handler);
 
+		queue = new LinkedList<Request>();
+		current = null;
+		sweepingUp = true;
+
+		String scheduler = Config.getString("SynchDisk.scheduler", "fifo");
+		if (scheduler.equalsIgnoreCase("fifo"))
+			policy = FIFO;
+		else if (scheduler.equalsIgnoreCase("sstf"))
+			policy = SSTF;
+		else if (scheduler.equalsIgnoreCase("scan"))
+			policy = SCAN;
+		else if (scheduler.equalsIgnoreCase("clook"))
+			policy = CLOOK;
+		else
+			Lib.assertNotReached("unknown disk scheduler: " + scheduler);
 	}
 
 	// ----------------------------------------------------------------------
@@ -70,22 +95,8 @@ public class SynchDisk {
 	// ----------------------------------------------------------------------
 
 	public void readSector(int sectorNumber, byte[] data, int index) {
-		lock().acquire(); // only one disk I/O at a time
-		disk.readRequest(sectorNumber, data, index);
-		semaphore().P(); // wait for interrupt
-		lock().release();
-	}
-
-	private Semaphore semaphore() {
-		if (semaphore == null)
-			semaphore = new Semaphore(0);
-		return semaphore;
-	}
-
-	private Lock lock() {
-		if (lock == null)
-			lock = new Lock();
-		return lock;
+		request(new Request[] { new Request(sectorNumber, 1, data, index,
+				false) });
 	}
 
 	// ----------------------------------------------------------------------
@@ -98,22 +109,185 @@ public class SynchDisk {
 	// ----------------------------------------------------------------------
 
 	public void writeSector(int sectorNumber, byte[] data, int index) {
-		lock().acquire(); // only one disk I/O at a time
-		disk.writeRequest(sectorNumber, data, index);
-		semaphore().P(); // wait for interrupt
-		lock().release();
+		request(new Request[] { new Request(sectorNumber, 1, data, index,
+				true) });
+	}
+
+	// ----------------------------------------------------------------------
+	// readSectors/writeSectors
+	// Transfer several sectors at once, between the disk and consecutive
+	// sector-sized slots of "data" starting at "index". Physically
+	// contiguous sectors are merged into a single request, which pays for
+	// one seek. Return only after every sector has been transferred.
+	//
+	// "sectorNumbers" -- the disk sectors to read/write, in buffer order
+	// ----------------------------------------------------------------------
+
+	public void readSectors(int[] sectorNumbers, byte[] data, int index) {
+		request(merge(sectorNumbers, data, index, false));
+	}
+
+	public void writeSectors(int[] sectorNumbers, byte[] data, int index) {
+		request(merge(sectorNumbers, data, index, true));
+	}
+
+	private Request[] merge(int[] sectorNumbers, byte[] data, int index,
+			boolean write) {
+		LinkedList<Request> runs = new LinkedList<Request>();
+
+		for (int i = 0, j; i < sectorNumbers.length; i = j) {
+			for (j = i + 1; j < sectorNumbers.length; j++) {
+				if (sectorNumbers[j] != sectorNumbers[j - 1] + 1)
+					break;
+			}
+			runs.add(new Request(sectorNumbers[i], j - i, data, index + i
+					* Disk.SectorSize, write));
+		}
+
+		return runs.toArray(new Request[runs.size()]);
+	}
+
+	// ----------------------------------------------------------------------
+	// request
+	// Queue requests, start the disk if it is idle, and wait for all of
+	// them to complete.
+	// ----------------------------------------------------------------------
+
+	private void request(Request[] requests) {
+		for (Request request : requests)
+			Lib.assertTrue(request.sector >= 0
+					&& request.sector + request.count <= Disk.NumSectors);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (Request request : requests)
+			queue.add(request);
+		if (current == null && !queue.isEmpty())
+			startNext();
+
+		Machine.interrupt().restore(intStatus);
+
+		for (Request request : requests)
+			request.done.P(); // wait for interrupt
+	}
+
+	// ----------------------------------------------------------------------
+	// startNext
+	// Remove the next request from the queue and hand it to the disk.
+	// Interrupts must be disabled.
+	// ----------------------------------------------------------------------
+
+	private void startNext() {
+		Lib.assertTrue(current == null && !queue.isEmpty());
+
+		current = pickNext();
+		current.started = privilege.stats.totalTicks;
+		privilege.stats.numDiskRequests++;
+		privilege.stats.numDiskSeekTracks += Math.abs(Disk
+				.trackOf(current.sector)
+				- disk.headTrack());
+
+		if (current.write)
+			disk.writeRequest(current.sector, current.count, current.data,
+					current.index);
+		else
+			disk.readRequest(current.sector, current.count, current.data,
+					current.index);
+	}
+
+	private Request pickNext() {
+		if (policy == FIFO)
+			return queue.removeFirst();
+
+		int head = disk.headTrack();
+		Request best = null;
+		int bestDistance = 0;
+
+		if (policy == SCAN) {
+			best = nearest(head, sweepingUp);
+			if (best == null) {
+				sweepingUp = !sweepingUp;
+				best = nearest(head, sweepingUp);
+			}
+		} else if (policy == CLOOK) {
+			best = nearest(head, true);
+			if (best == null)
+				best = nearest(-1, true);
+		} else {
+			for (Request request : queue) {
+				int distance = Math.abs(Disk.trackOf(request.sector) - head);
+				if (best == null || distance < bestDistance) {
+					best = request;
+					bestDistance = distance;
+				}
+			}
+		}
+
+		queue.remove(best);
+		return best;
+	}
+
+	// ----------------------------------------------------------------------
+	// nearest
+	// Return the earliest queued request on the closest track at or beyond
+	// "head" in the given direction, or null if there is none.
+	// ----------------------------------------------------------------------
+
+	private Request nearest(int head, boolean up) {
+		Request best = null;
+		int bestDistance = 0;
+
+		for (Request request : queue) {
+			int distance = Disk.trackOf(request.sector) - head;
+			if (!up)
+				distance = -distance;
+			if (distance >= 0 && (best == null || distance < bestDistance)) {
+				best = request;
+				bestDistance = distance;
+			}
+		}
+
+		return best;
 	}
 
 	// ----------------------------------------------------------------------
 	// requestDone
-	// Disk interrupt handler. Wake up any thread waiting for the disk
-	// request to finish.
+	// Disk interrupt handler. Wake up the thread waiting for the request
+	// that just finished, and start the next one.
 	// ----------------------------------------------------------------------
 
 	public void requestDone() {
-		semaphore().V();
+		Lib.assertTrue(current != null);
+
+		privilege.stats.diskTicks += privilege.stats.totalTicks
+				- current.started;
+		current.done.V();
+		current = null;
+
+		if (!queue.isEmpty())
+			startNext();
 	}
 
+	// A pending disk request
+	//
+	private class Request {
+		Request(int sector, int count, byte[] data, int index,
+				boolean write) {
+			this.sector = sector;
+			this.count = count;
+			this.data = data;
+			this.index = index;
+			this.write = write;
+		}
+
+		int sector;
+		int count;
+		byte[] data;
+		int index;
+		boolean write;
+		long started;
+		Semaphore done = new Semaphore(0, "SynchDisk.done");
+	}
 }
 
 // SynchDisk interrupt handler class
@@ -2,7 +2,9 @@
 
 package nachos.machine;
 
+import java.lang.reflect.Method;
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 
 import nachos.security.Privilege;
 import nachos.threads.KThread;
@@ -20,6 +22,21 @@ import nachos.threads.KThread;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * How TCBs hand the CPU to each other is chosen at startup by
+ * <tt>TCB.implementation</tt>:
+ * <ul>
+ * <li><tt>monitor</tt> (the default): one platform thread per TCB, woken with
+ * <tt>wait()</tt>/<tt>notify()</tt> on the TCB's monitor
+ * <li><tt>park</tt>: one platform thread per TCB, woken with
+ * <tt>LockSupport.park()</tt>/<tt>unpark()</tt>
+ * <li><tt>virtual</tt>: one virtual thread per TCB, woken with
+ * <tt>park()</tt>/<tt>unpark()</tt>; this needs a Java 21 runtime
+ * </ul>
+ * Either way only one TCB runs at a time. <tt>TCB.maxThreads</tt> limits the
+ * number of TCBs; by default it is 250 for <tt>monitor</tt> and unlimited
+ * otherwise.
  */
 public final class TCB {
 	/**
@@ -39,6 +56,32 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		String name = Config.getString("TCB.implementation", "monitor");
+		if (name.equalsIgnoreCase("monitor"))
+			implementation = MONITOR;
+		else if (name.equalsIgnoreCase("park"))
+			implementation = PARK;
+		else if (name.equalsIgnoreCase("virtual"))
+			implementation = VIRTUAL;
+		else
+			Lib.assertNotReached("unknown TCB implementation: " + name);
+
+		maxThreads = Config.getInteger("TCB.maxThreads",
+				implementation == MONITOR ? 250 : Integer.MAX_VALUE);
+
+		if (implementation == VIRTUAL) {
+			// Thread.ofVirtual().unstarted(target), without needing Java 21 to
+			// compile
+			try {
+				virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(
+						null);
+				unstartedVirtual = Class.forName("java.lang.Thread$Builder")
+						.getMethod("unstarted", Runnable.class);
+			} catch (Exception e) {
+				Lib.assertNotReached("virtual threads need Java 21");
+			}
+		}
 	}
 
 	/**
@@ -102,7 +145,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newJavaThread(tcbTarget);
 				}
 			});
 
@@ -129,6 +172,18 @@ public final class TCB {
 		}
 	}
 
+	private static Thread newJavaThread(Runnable target) {
+		if (implementation != VIRTUAL)
+			return new Thread(target);
+
+		try {
+			return (Thread) unstartedVirtual.invoke(virtualBuilder, target);
+		} catch (Exception e) {
+			Lib.assertNotReached("can't create a virtual thread");
+			return null;
+		}
+	}
+
 	/**
 	 * Return the TCB of the currently running thread.
 	 */
@@ -294,7 +349,17 @@ public final class TCB {
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
+	private void waitForInterrupt() {
+		if (implementation == MONITOR) {
+			waitOnMonitor();
+			return;
+		}
+
+		while (!running)
+			LockSupport.park(this);
+	}
+
+	private synchronized void waitOnMonitor() {
 		while (!running) {
 			try {
 				wait();
@@ -309,7 +374,17 @@ public final class TCB {
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
+		if (implementation == MONITOR) {
+			notifyMonitor();
+			return;
+		}
+
+		running = true;
+		LockSupport.unpark(javaThread);
+	}
+
+	private synchronized void notifyMonitor() {
 		running = true;
 		notify();
 	}
@@ -337,9 +412,20 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence. Set from <tt>TCB.maxThreads</tt> by
+	 * <tt>givePrivilege()</tt>.
 	 */
-	public static final int maxThreads = 250;
+	public static int maxThreads = 250;
+
+	private static final int MONITOR = 0, PARK = 1, VIRTUAL = 2;
+
+	/** How TCBs are run and woken up. */
+	private static int implementation = MONITOR;
+
+	/** A <tt>Thread.Builder.OfVirtual</tt>, for the virtual implementation. */
+	private static Object virtualBuilder = null;
+	/** <tt>Thread.Builder.unstarted(Runnable)</tt>. */
+	private static Method unstartedVirtual = null;
 
 	/**
 	 * A reference to the currently running TCB. It is initialized to
@@ -395,9 +481,10 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. It is volatile because the park implementations read it without
+	 * holding the monitor.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
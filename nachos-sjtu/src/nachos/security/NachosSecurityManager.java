@@ -61,11 +61,11 @@ public class NachosSecurityManager extends SecurityManager {
 			NachosSecurityManager.this.doPrivileged(action);
 		}
 
-		public Object doPrivileged(PrivilegedAction action) {
+		public Object doPrivileged(PrivilegedAction<?> action) {
 			return NachosSecurityManager.this.doPrivileged(action);
 		}
 
-		public Object doPrivileged(PrivilegedExceptionAction action)
+		public Object doPrivileged(PrivilegedExceptionAction<?> action)
 				throws PrivilegedActionException {
 			return NachosSecurityManager.this.doPrivileged(action);
 		}
@@ -132,7 +132,7 @@ public class NachosSecurityManager extends SecurityManager {
 		});
 	}
 
-	private Object doPrivileged(PrivilegedAction action) {
+	private Object doPrivileged(PrivilegedAction<?> action) {
 		Object result = null;
 		enablePrivilege();
 		try {
@@ -144,7 +144,7 @@ public class NachosSecurityManager extends SecurityManager {
 		return result;
 	}
 
-	private Object doPrivileged(PrivilegedExceptionAction action)
+	private Object doPrivileged(PrivilegedExceptionAction<?> action)
 			throws PrivilegedActionException {
 		Object result = null;
 		enablePrivilege();
@@ -65,7 +65,7 @@ public abstract class Privilege {
 	 *            the action to perform.
 	 * @return the return value of the action.
 	 */
-	public abstract Object doPrivileged(PrivilegedAction action);
+	public abstract Object doPrivileged(PrivilegedAction<?> action);
 
 	/**
 	 * Perform the specified <tt>PrivilegedExceptionAction</tt> with privilege.
@@ -74,7 +74,7 @@ public abstract class Privilege {
 	 *            the action to perform.
 	 * @return the return value of the action.
 	 */
-	public abstract Object doPrivileged(PrivilegedExceptionAction action)
+	public abstract Object doPrivileged(PrivilegedExceptionAction<?> action)
 			throws PrivilegedActionException;
 
 	/**
@@ -164,6 +164,30 @@ public abstract class Privilege {
 		 *            user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by several ticks at once, then invoke
+		 * any interrupt handlers that have become due. The caller must make
+		 * sure that no interrupt falls due before the last of these ticks,
+		 * so that handlers run at the same time they would have if each tick
+		 * had been taken separately.
+		 * 
+		 * @param inKernelMode
+		 *            <tt>true</tt> if the current thread is running kernel
+		 *            code, <tt>false</tt> if the current thread is running MIPS
+		 *            user code.
+		 * @param count
+		 *            the number of ticks to advance.
+		 */
+		public void tick(boolean inKernelMode, int count);
+
+		/**
+		 * Return the time at which the earliest pending interrupt is due.
+		 * 
+		 * @return the time of the next pending interrupt, or
+		 *         <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+		 */
+		public long nextPendingTime();
 	}
 
 	/**
@@ -1,6 +1,8 @@
 package nachos.threads;
 
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 
 import nachos.machine.*;
 
@@ -8,16 +10,27 @@ import nachos.machine.*;
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending timeouts are kept in a hashed timing wheel: an array of
+ * <tt>wheelSize</tt> lists, each holding the timeouts that expire in one
+ * <tt>slotTicks</tt>-long slot of time (modulo the length of the wheel).
+ * Scheduling and cancelling a timeout take constant time. A timer interrupt
+ * expires the slots that have passed since the last one as a whole, and
+ * checks the timeouts of the current slot one by one.
  */
 public class Alarm {
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
-	 * 
+	 *
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
+		wheel = new Timeout[wheelSize];
+		nextSlot = Machine.timer().getTime() / slotTicks;
+
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -27,70 +40,185 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Runs the handlers of
+	 * the timeouts that have expired, then causes the current thread to yield
+	 * if the scheduler wants to preempt it, forcing a context switch if there
+	 * is another thread that should be run.
 	 */
 	public void timerInterrupt() {
-		//lock.acquire();??
 		boolean intStatus = Machine.interrupt().disable();
-		if (waitingQueue.isEmpty() || waitingQueue.first().time > Machine.timer().getTime())
-			KThread.yield();
-		else {
-			WaitingThread pair;
-			while (!waitingQueue.isEmpty() && waitingQueue.first().time <= Machine.timer().getTime()) {
-				pair = waitingQueue.first();
-				pair.thread.ready();
-				waitingQueue.remove(pair);
-				//System.out.println("wake up "+" "+pair.time+" at "+Machine.timer().getTime());
-			}
+
+		expire(Machine.timer().getTime());
+
+		if (ThreadedKernel.scheduler.preempt(KThread.currentThread()))
 			KThread.yield();
-		}
+
 		Machine.interrupt().restore(intStatus);
-		//lock.release();
 	}
 
 	/**
 	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
 	 * in the timer interrupt handler. The thread must be woken up (placed in
 	 * the scheduler ready set) during the first timer interrupt where
-	 * 
+	 *
 	 * <p>
 	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
-	 * 
+	 *
 	 * @param x
 	 *            the minimum number of clock ticks to wait.
-	 * 
+	 *
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
-		long wakeTime = Machine.timer().getTime() + x;
-//		while (wakeTime > Machine.timer().getTime())
-//			KThread.yield();
-		
 		Lib.assertTrue(Machine.interrupt().enabled());
-		
+
 		Machine.interrupt().disable();
-		waitingQueue.add(new WaitingThread(wakeTime, KThread.currentThread()));
-		//System.out.println("to sleep:"+wakeTime);
+		final KThread thread = KThread.currentThread();
+		schedule(x, new Runnable() {
+			public void run() {
+				thread.ready();
+			}
+		});
 		KThread.sleep();
-		Machine.interrupt().enable();		
+		Machine.interrupt().enable();
 	}
-	class WaitingThread implements Comparable<WaitingThread> {
-		long time;
-		KThread thread;
-		
-		WaitingThread(long t, KThread th) {
-			time = t; thread = th;
+
+	/**
+	 * Run <i>handler</i> in the timer interrupt handler, with interrupts
+	 * disabled, during the first timer interrupt at least <i>x</i> ticks from
+	 * now. Must be called with interrupts disabled.
+	 *
+	 * @param x
+	 *            the minimum number of clock ticks to wait.
+	 * @param handler
+	 *            the handler to run.
+	 * @return a handle that can cancel the timeout.
+	 */
+	public Timeout schedule(long x, Runnable handler) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Timeout timeout = new Timeout(Machine.timer().getTime() + x, handler,
+				nextSequence++);
+		timeout.slot = Math.max(timeout.time / slotTicks, nextSlot);
+		timeout.link();
+		return timeout;
+	}
+
+	/**
+	 * Run the handlers of all timeouts due at time <i>now</i>, in order of
+	 * their expiry times, and in the order they were scheduled for equal
+	 * times.
+	 */
+	private void expire(long now) {
+		long current = now / slotTicks;
+
+		// every slot before the current one has passed as a whole; if more
+		// than a wheel's worth has passed, each list needs to be looked at once
+		for (long slot = Math.max(nextSlot, current - wheelSize + 1); slot < current; slot++) {
+			for (Timeout t = wheel[index(slot)], next; t != null; t = next) {
+				next = t.next;
+				if (t.slot <= slot)
+					expired(t);
+			}
 		}
-		
-		public int compareTo(WaitingThread wt) {
-			if (time < wt.time) return -1;
-			if (time > wt.time) return 1;
-			return 0;
+
+		for (Timeout t = wheel[index(current)], next; t != null; t = next) {
+			next = t.next;
+			if (t.time <= now)
+				expired(t);
 		}
+
+		nextSlot = current;
+
+		if (due.size() > 1)
+			Collections.sort(due, byTime);
+		for (int i = 0; i < due.size(); i++)
+			due.get(i).handler.run();
+		due.clear();
+	}
+
+	private void expired(Timeout timeout) {
+		timeout.unlink();
+		due.add(timeout);
+	}
+
+	private static int index(long slot) {
+		return (int) (slot & (wheelSize - 1));
+	}
+
+	/**
+	 * A pending call to a handler from the timer interrupt handler, returned
+	 * by <tt>schedule()</tt>.
+	 */
+	public class Timeout {
+		Timeout(long time, Runnable handler, long sequence) {
+			this.time = time;
+			this.handler = handler;
+			this.sequence = sequence;
+		}
+
+		/**
+		 * Cancel this timeout. Must be called with interrupts disabled.
+		 *
+		 * @return <tt>true</tt> if the timeout was cancelled, or
+		 *         <tt>false</tt> if it had already expired or been cancelled.
+		 */
+		public boolean cancel() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (!pending)
+				return false;
+			unlink();
+			return true;
+		}
+
+		private void link() {
+			int i = index(slot);
+			next = wheel[i];
+			if (next != null)
+				next.prev = this;
+			wheel[i] = this;
+			pending = true;
+		}
+
+		private void unlink() {
+			if (prev == null)
+				wheel[index(slot)] = next;
+			else
+				prev.next = next;
+			if (next != null)
+				next.prev = prev;
+			prev = next = null;
+			pending = false;
+		}
+
+		private long time;
+		private long sequence;
+		private long slot;
+		private Runnable handler;
+		private boolean pending = false;
+		private Timeout prev = null, next = null;
 	}
-	TreeSet<WaitingThread> waitingQueue = new TreeSet<WaitingThread>();
-	//Lock lock = new Lock();
+
+	/** The length of a slot of the wheel, in ticks. */
+	private static final int slotTicks = 100;
+	/** The number of slots of the wheel; a power of two. */
+	private static final int wheelSize = 1024;
+
+	private Timeout[] wheel;
+	/** The first slot that has not passed as a whole. */
+	private long nextSlot;
+
+	private long nextSequence = 0;
+
+	/** Timeouts that expired during this interrupt. */
+	private ArrayList<Timeout> due = new ArrayList<Timeout>();
+
+	private static final Comparator<Timeout> byTime = new Comparator<Timeout>() {
+		public int compare(Timeout a, Timeout b) {
+			if (a.time != b.time)
+				return a.time < b.time ? -1 : 1;
+			return a.sequence < b.sequence ? -1 : 1;
+		}
+	};
 }
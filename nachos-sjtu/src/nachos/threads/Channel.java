@@ -0,0 +1,234 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+
+/**
+ * A <i>channel</i> is a bounded buffer of 32-bit words between threads. Unlike
+ * a <tt>Communicator</tt>, a sender does not wait for a receiver unless the
+ * buffer is full, and words are moved in batches.
+ *
+ * <p>
+ * Blocking and wakeups are batched too. A sender that fills the buffer wakes
+ * the receivers once for everything it added, and a blocked sender is only
+ * woken once half the buffer is free, or as much of it as the sender still
+ * needs if that is less.
+ */
+public class Channel {
+	/**
+	 * Allocate a new channel.
+	 *
+	 * @param capacity
+	 *            the maximum number of words the channel holds.
+	 */
+	public Channel(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new int[capacity];
+		lowWater = (capacity + 1) / 2;
+	}
+
+	/**
+	 * Send <i>len</i> words, starting at <i>words[off]</i>. Does not return
+	 * until all of them are in the channel, waiting for room as often as
+	 * needed. Words from a single <tt>send()</tt> are received in order, but
+	 * may be interleaved with words from other senders once the channel fills.
+	 *
+	 * @param words
+	 *            the buffer holding the words to send.
+	 * @param off
+	 *            the first word to send.
+	 * @param len
+	 *            the number of words to send.
+	 */
+	public void send(int[] words, int off, int len) {
+		Lib.assertTrue(off >= 0 && len >= 0 && off + len <= words.length);
+
+		lock.acquire();
+
+		while (len > 0) {
+			int need = Math.min(len, lowWater);
+			while (buffer.length - count < need) {
+				minNeed = Math.min(minNeed, need);
+				notFull.sleep();
+			}
+
+			int n = Math.min(len, buffer.length - count);
+			int tail = (head + count) % buffer.length;
+			int first = Math.min(n, buffer.length - tail);
+			System.arraycopy(words, off, buffer, tail, first);
+			System.arraycopy(words, off + first, buffer, 0, n - first);
+			count += n;
+			off += n;
+			len -= n;
+
+			if (receiversWaiting) {
+				receiversWaiting = false;
+				notEmpty.wakeAll();
+			}
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Wait until the channel holds at least one word, then receive as many as
+	 * are available, up to <i>len</i>, into <i>words</i> starting at
+	 * <i>off</i>.
+	 *
+	 * @param words
+	 *            the buffer to hold the words received.
+	 * @param off
+	 *            where to store the first word.
+	 * @param len
+	 *            the maximum number of words to receive; must be positive.
+	 * @return the number of words received.
+	 */
+	public int receive(int[] words, int off, int len) {
+		Lib.assertTrue(off >= 0 && len > 0 && off + len <= words.length);
+
+		lock.acquire();
+
+		while (count == 0) {
+			receiversWaiting = true;
+			notEmpty.sleep();
+		}
+
+		int n = Math.min(len, count);
+		int first = Math.min(n, buffer.length - head);
+		System.arraycopy(buffer, head, words, off, first);
+		System.arraycopy(buffer, 0, words, off + first, n - first);
+		head = (head + n) % buffer.length;
+		count -= n;
+
+		if (buffer.length - count >= minNeed) {
+			minNeed = Integer.MAX_VALUE;
+			notFull.wakeAll();
+		}
+
+		lock.release();
+		return n;
+	}
+
+	/**
+	 * Send a single word.
+	 *
+	 * @param word
+	 *            the integer to send.
+	 */
+	public void send(int word) {
+		send(new int[] { word }, 0, 1);
+	}
+
+	/**
+	 * Wait for a single word and return it.
+	 *
+	 * @return the integer received.
+	 */
+	public int receive() {
+		int[] word = new int[1];
+		receive(word, 0, 1);
+		return word[0];
+	}
+
+	/**
+	 * Sends the words <i>first</i> to <i>first + count - 1</i> in batches of
+	 * growing size.
+	 */
+	private static class Sender implements Runnable {
+		Sender(Channel channel, int first, int count) {
+			this.channel = channel;
+			this.first = first;
+			this.count = count;
+		}
+
+		public void run() {
+			int[] words = new int[7];
+			for (int sent = 0, len = 1; sent < count; sent += len, len = len % 7 + 1) {
+				len = Math.min(len, count - sent);
+				for (int i = 0; i < len; i++)
+					words[i] = first + sent + i;
+				channel.send(words, 0, len);
+			}
+		}
+
+		private Channel channel;
+		private int first, count;
+	}
+
+	/**
+	 * Receives <i>count</i> words, at most <i>batch</i> at a time, and adds
+	 * them up.
+	 */
+	private static class Receiver implements Runnable {
+		Receiver(Channel channel, int count, int batch) {
+			this.channel = channel;
+			this.count = count;
+			this.batch = batch;
+		}
+
+		public void run() {
+			int[] words = new int[batch];
+			for (int received = 0; received < count;) {
+				int n = channel.receive(words, 0, Math.min(batch, count
+						- received));
+				for (int i = 0; i < n; i++)
+					sum += words[i];
+				received += n;
+			}
+		}
+
+		private Channel channel;
+		private int count, batch;
+		private long sum = 0;
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		// four senders and four receivers, through small channels
+		int perThread = 200;
+		int[] capacities = { 1, 3, 5 };
+		for (int capacity : capacities) {
+			Channel channel = new Channel(capacity);
+			KThread[] threads = new KThread[8];
+			Receiver[] receivers = new Receiver[4];
+			for (int i = 0; i < 4; i++) {
+				threads[i] = new KThread(new Sender(channel, i * perThread,
+						perThread)).setName("sender " + i);
+				receivers[i] = new Receiver(channel, perThread, i + 1);
+				threads[4 + i] = new KThread(receivers[i]).setName("receiver "
+						+ i);
+			}
+			for (KThread thread : threads)
+				thread.fork();
+			for (KThread thread : threads)
+				thread.join();
+
+			long sum = 0;
+			for (Receiver receiver : receivers)
+				sum += receiver.sum;
+			long words = 4 * perThread;
+			Lib.assertTrue(sum == words * (words - 1) / 2);
+		}
+	}
+
+	private Lock lock = new Lock();
+	private Condition2 notEmpty = new Condition2(lock);
+	private Condition2 notFull = new Condition2(lock);
+
+	/** A ring buffer of <tt>count</tt> words starting at <tt>head</tt>. */
+	private int[] buffer;
+	private int head = 0;
+	private int count = 0;
+
+	/** Whether any receiver is waiting for words. */
+	private boolean receiversWaiting = false;
+	/**
+	 * The least free space any waiting sender needs, or
+	 * <tt>Integer.MAX_VALUE</tt> if no sender is waiting.
+	 */
+	private int minNeed = Integer.MAX_VALUE;
+	/** The most free space a sender waits for. */
+	private int lowWater;
+}
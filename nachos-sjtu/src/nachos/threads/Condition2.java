@@ -21,7 +21,21 @@ public class Condition2 {
 	 *            <tt>wake()</tt>, or <tt>wakeAll()</tt>.
 	 */
 	public Condition2(Lock conditionLock) {
+		this(conditionLock, null);
+	}
+
+	/**
+	 * Allocate a new condition variable with a name, under which
+	 * <tt>LockProfiler</tt> reports it.
+	 * 
+	 * @param conditionLock
+	 *            the lock associated with this condition variable.
+	 * @param name
+	 *            the name of the condition variable.
+	 */
+	public Condition2(Lock conditionLock, String name) {
 		this.conditionLock = conditionLock;
+		profile = LockProfiler.record("Condition2", name);
 	}
 
 	/**
@@ -38,13 +52,42 @@ public class Condition2 {
 		Machine.interrupt().disable();
 		conditionLock.release();
 		sleptQueue.waitForAccess(KThread.currentThread());
+		long since = profile == null ? 0 : LockProfiler.now();
 		KThread.sleep();
+		if (profile != null)
+			profile.acquired(true, since);
 		
 		//Machine.interrupt().restore(intStatus);
 		Machine.interrupt().enable();
 		conditionLock.acquire();
 	}
 
+	/**
+	 * Like <tt>sleep()</tt>, but also wake up after <i>timeout</i> ticks if no
+	 * other thread has woken this one. The lock is reacquired either way.
+	 * 
+	 * @param timeout
+	 *            the minimum number of clock ticks to sleep.
+	 * @return <tt>true</tt> if another thread woke this one, or
+	 *         <tt>false</tt> if the sleep timed out.
+	 */
+	public boolean sleep(long timeout) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+		Lib.assertTrue(Machine.interrupt().enabled());
+		
+		Machine.interrupt().disable();
+		conditionLock.release();
+		sleptQueue.waitForAccess(KThread.currentThread());
+		long since = profile == null ? 0 : LockProfiler.now();
+		boolean woken = TimedWait.sleep(sleptQueue, timeout);
+		if (profile != null)
+			profile.acquired(true, since);
+		
+		Machine.interrupt().enable();
+		conditionLock.acquire();
+		return woken;
+	}
+
 	/**
 	 * Wake up at most one thread sleeping on this condition variable. The
 	 * current thread must hold the associated lock.
@@ -82,4 +125,6 @@ public class Condition2 {
 
 	private Lock conditionLock;
 	private ThreadQueue sleptQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+
+	private LockProfiler.Record profile;
 }
@@ -58,7 +58,7 @@ public class KThread {
 		if (currentThread != null) {
 			tcb = new TCB();
 		} else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 			readyQueue.acquire(this);
 
 			currentThread = this;
@@ -339,8 +339,10 @@ public class KThread {
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
+			Machine.interrupt().idle();
 			nextThread = idleThread;
+		}
 
 		nextThread.run();
 	}
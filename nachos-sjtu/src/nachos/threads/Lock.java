@@ -23,6 +23,18 @@ public class Lock {
 	 * Allocate a new lock. The lock will initially be <i>free</i>.
 	 */
 	public Lock() {
+		this(null);
+	}
+
+	/**
+	 * Allocate a new lock with a name, under which <tt>LockProfiler</tt>
+	 * reports it.
+	 * 
+	 * @param name
+	 *            the name of the lock.
+	 */
+	public Lock(String name) {
+		profile = LockProfiler.record("Lock", name);
 	}
 
 	/**
@@ -35,7 +47,9 @@ public class Lock {
 		KThread thread = KThread.currentThread();
 //		System.out.println(thread+" try to acquire "+waitQueue);
 
-		if (lockHolder != null) {
+		boolean contended = lockHolder != null;
+		long since = profile == null ? 0 : LockProfiler.now();
+		if (contended) {
 //			System.out.println(KThread.currentThread()+" wait for "
 //								+waitQueue);
 			waitQueue.waitForAccess(thread);
@@ -47,6 +61,10 @@ public class Lock {
 		}
 
 		Lib.assertTrue(lockHolder == thread);
+		if (profile != null) {
+			profile.acquired(contended, since);
+			heldSince = LockProfiler.now();
+		}
 
 		Machine.interrupt().restore(intStatus);
 	}
@@ -60,6 +78,8 @@ public class Lock {
 //		System.out.println(KThread.currentThread()+" try to release "+waitQueue);
 
 //		System.out.println(KThread.currentThread().getName()+" release "+waitQueue);
+		if (profile != null)
+			profile.released(heldSince);
 		if ((lockHolder = waitQueue.nextThread()) != null)
 			lockHolder.ready();
 		Machine.interrupt().restore(intStatus);
@@ -77,4 +97,7 @@ public class Lock {
 	private KThread lockHolder = null;
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
+
+	private LockProfiler.Record profile;
+	private long heldSince;
 }
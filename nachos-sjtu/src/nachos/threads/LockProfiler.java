@@ -0,0 +1,141 @@
+package nachos.threads;
+
+import java.util.TreeMap;
+
+import nachos.machine.Config;
+import nachos.machine.Machine;
+import nachos.machine.Stats;
+
+/**
+ * Records where threads wait on locks, condition variables and semaphores.
+ *
+ * <p>
+ * Profiling is off unless <tt>LockProfiler.enabled</tt> is set. When it is on,
+ * every <tt>Lock</tt>, <tt>Condition2</tt> and <tt>Semaphore</tt> reports to
+ * the record of its name, so that all locks created with the same name (for
+ * example, the lock of every inode) are counted together. Each record counts
+ * acquisitions, contended acquisitions (those that had to wait), and the total
+ * and maximum wait and hold times in simulated ticks. A wait lasts until the
+ * waiting thread runs again, so it includes time spent in the ready queue. For
+ * condition variables and semaphores every sleep counts as a contended
+ * acquisition, and nothing is held.
+ *
+ * <p>
+ * The records are printed with the statistics when Nachos halts, as a table,
+ * or as CSV if <tt>LockProfiler.format</tt> is <tt>csv</tt>.
+ */
+public class LockProfiler {
+	private LockProfiler() {
+	}
+
+	/**
+	 * Return the record for the named primitive, or <tt>null</tt> if
+	 * profiling is off.
+	 *
+	 * @param kind
+	 *            the kind of primitive: <tt>Lock</tt>, <tt>Condition2</tt>
+	 *            or <tt>Semaphore</tt>.
+	 * @param name
+	 *            the name of the primitive, or <tt>null</tt> if it has none.
+	 * @return the record to report to.
+	 */
+	static Record record(String kind, String name) {
+		if (!enabled)
+			return null;
+
+		String key = kind + " " + (name == null ? "(unnamed)" : name);
+		Record record = records.get(key);
+		if (record == null) {
+			record = new Record(kind, name == null ? "(unnamed)" : name);
+			records.put(key, record);
+		}
+		return record;
+	}
+
+	/**
+	 * Return the current simulated time, which the primitives use to time
+	 * waits and holds.
+	 */
+	static long now() {
+		return Machine.timer().getTime();
+	}
+
+	private static void print() {
+		boolean csv = Config.getString("LockProfiler.format", "table").equals(
+				"csv");
+
+		if (csv)
+			System.out.println("kind,name,acquisitions,contended,"
+					+ "waitTicks,maxWaitTicks,holdTicks,maxHoldTicks");
+		for (Record r : records.values()) {
+			if (r.acquisitions == 0)
+				continue;
+			if (csv)
+				System.out.println(r.kind + "," + r.name + "," + r.acquisitions
+						+ "," + r.contended + "," + r.waitTicks + ","
+						+ r.maxWaitTicks + "," + r.holdTicks + ","
+						+ r.maxHoldTicks);
+			else
+				System.out.println(r.kind + " " + r.name + ": acquisitions "
+						+ r.acquisitions + ", contended " + r.contended
+						+ ", wait " + r.waitTicks + " (max " + r.maxWaitTicks
+						+ ") ticks, hold " + r.holdTicks + " (max "
+						+ r.maxHoldTicks + ") ticks");
+		}
+	}
+
+	/**
+	 * The counts of one named primitive. Only updated with interrupts
+	 * disabled.
+	 */
+	static class Record {
+		Record(String kind, String name) {
+			this.kind = kind;
+			this.name = name;
+		}
+
+		/**
+		 * Count an acquisition that waited from <i>since</i> until now, or
+		 * did not wait if <i>contended</i> is false.
+		 */
+		void acquired(boolean contended, long since) {
+			acquisitions++;
+			if (contended) {
+				this.contended++;
+				long wait = now() - since;
+				waitTicks += wait;
+				maxWaitTicks = Math.max(maxWaitTicks, wait);
+			}
+		}
+
+		/** Count a hold from <i>since</i> until now. */
+		void released(long since) {
+			long hold = now() - since;
+			holdTicks += hold;
+			maxHoldTicks = Math.max(maxHoldTicks, hold);
+		}
+
+		private String kind;
+		private String name;
+		private long acquisitions = 0;
+		private long contended = 0;
+		private long waitTicks = 0;
+		private long maxWaitTicks = 0;
+		private long holdTicks = 0;
+		private long maxHoldTicks = 0;
+	}
+
+	private static final boolean enabled = Config.getBoolean(
+			"LockProfiler.enabled", false);
+	private static TreeMap<String, Record> records = new TreeMap<String, Record>();
+
+	static {
+		if (enabled) {
+			Stats.addReport(new Runnable() {
+				public void run() {
+					print();
+				}
+			});
+		}
+	}
+}
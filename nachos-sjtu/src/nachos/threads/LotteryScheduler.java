@@ -1,13 +1,10 @@
 package nachos.threads;
 
 
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.HashMap;
 
 import nachos.machine.Lib;
 import nachos.machine.Machine;
-import nachos.threads.PriorityScheduler.PriorityQueue;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -29,7 +26,7 @@ import nachos.threads.PriorityScheduler.PriorityQueue;
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
  */
-public class LotteryScheduler extends PriorityScheduler {
+public class LotteryScheduler extends TicketScheduler {
 	/**
 	 * Allocate a new lottery scheduler.
 	 */
@@ -37,22 +34,6 @@ public class LotteryScheduler extends PriorityScheduler {
 	}
 	
 
-	/**
-	 * Return the scheduling Lottery state of the specified thread.
-	 * 
-	 * @param thread
-	 *            the thread whose scheduling state to return.
-	 * @return the scheduling state of the specified thread.
-	 */
-	protected LotteryState getThreadState(KThread thread) {
-		if (thread.schedulingState == null)
-			thread.schedulingState = new LotteryState(thread);
-
-		return (LotteryState) thread.schedulingState;
-	}
-	
-	public static int priorityMinimum = 1;
-	public static int priorityMaximum = Integer.MAX_VALUE;
 	/**
 	 * Allocate a new lottery thread queue.
 	 * 
@@ -65,115 +46,123 @@ public class LotteryScheduler extends PriorityScheduler {
 		return new LotteryQueue(transferPriority);
 	}
 	
-	public class LotteryQueue extends PriorityQueue {
+	
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * 
+	 * <p>
+	 * Each waiting thread occupies a slot of a Fenwick tree that holds the
+	 * number of tickets in every slot, so drawing the winner and changing a
+	 * thread's tickets both take time logarithmic in the number of slots.
+	 * Slots of threads that stop waiting are reused.
+	 */
+	public class LotteryQueue extends TicketQueue {
 		LotteryQueue(boolean transferPriority) {
 			super(transferPriority);
 		}
-		
-		public void waitForAccess(KThread thread) {
+
+		public TicketState pickNextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			if (timeTable.containsKey(thread)) return;
-//			System.out.println(thread+" wait for "+this);
-//			
-			int ep = getThreadState(thread).getEffectivePriority();
-			if (transferPriority) 
-				getThreadState(owner).delta = (owner == thread)? -sum:ep;
-			int temp = owner == thread? ep: sum+ep;
-			
-			super.waitForAccess(thread);
-			
-//			print();
-			sum = temp;	
+			if (count == 0) return null;
+
+			// find the slot where the running total of tickets passes the draw
+			long n = Lib.random(sum);
+			int slot = 0;
+			for (int step = capacity; step > 0; step >>= 1) {
+				if (slot + step <= capacity && tree[slot + step] <= n) {
+					slot += step;
+					n -= tree[slot];
+				}
+			}
+			return states[slot];
 		}
-		public void acquire(KThread thread) {
-			Lib.assertTrue(Machine.interrupt().disabled());
-			if (transferPriority && owner != null) 
-				getThreadState(owner).delta = -sum;
-			LotteryState threadState = getThreadState(thread); 
-			if (thread == owner) {
-				sum -= threadState.getEffectivePriority();
-			} 
-			if (transferPriority)
-				threadState.delta = sum;
-			
-			super.acquire(thread);
-//			ThreadState state = getThreadState(thread);
-//			System.out.println("sum: "+sum+" after "+thread+"("+(state==null? "null":state.getEffectivePriority())+")acquire"+"("+transferPriority+")"+this);
+
+		protected boolean contains(KThread thread) {
+			return slots.containsKey(thread);
 		}
-		
-		public LotteryState pickNextThread() {
-			Lib.assertTrue(Machine.interrupt().disabled());
-			if (waitQueue.isEmpty()) return null;
-			int n = Lib.random(sum);
-			Iterator<KThread> iter = waitQueue.iterator();
-			int s = 0;
-			LotteryState cur = null;
-			while (iter.hasNext()) {
-				cur = getThreadState(iter.next());
-				s += cur.getEffectivePriority();
-				if (n < s) return cur;
-			}
-			Lib.assertTrue(false, "in pick next Thread: should not reach here");
-			return null;
+
+		protected void add(ThreadState state) {
+			if (free == 0)
+				grow();
+			int slot = freeSlots[--free];
+			slots.put(state.thread, slot);
+			states[slot] = (TicketState) state;
+			count++;
+			setTickets(slot, state.getEffectivePriority());
 		}
-		
-		public KThread nextThread() {
-			LotteryState nextState = pickNextThread();
-			KThread next = nextState == null? null: nextState.thread;
-//			System.out.println("sum: "+sum+" before "+next+"is the next thread of"+this);
-			if (transferPriority && owner != null) 
-				getThreadState(owner).delta = -sum;
-			if (nextState != null) {
-				sum -= nextState.getEffectivePriority();
-				if (transferPriority)
-					nextState.delta = sum;
-			}
-			next = updateUsingNext(next);
-			return next;
+
+		protected void remove(ThreadState state) {
+			int slot = slots.remove(state.thread);
+			setTickets(slot, 0);
+			states[slot] = null;
+			count--;
+			freeSlots[free++] = slot;
 		}
-		
-		
-		private int sum = 0;
-	}
-	
-	public class LotteryState extends ThreadState {
-		public LotteryState(KThread thread) {
-			super(thread);
+
+		protected void reposition(ThreadState state) {
+			setTickets(slots.get(state.thread), state.getEffectivePriority());
 		}
-		
-		@Override
-		protected void updatePriority() {
+
+		private void setTickets(int slot, long value) {
+			long delta = value - tickets[slot];
 			if (delta == 0) return;
-			for (PriorityQueue queue:waiting) {
-				queue.waitQueue.remove(thread);
+			tickets[slot] = value;
+			sum += delta;
+			for (int i = slot + 1; i <= capacity; i += i & -i)
+				tree[i] += delta;
+		}
+
+		/** Double the number of slots and rebuild the tree. */
+		private void grow() {
+			int oldCapacity = capacity;
+			capacity = capacity == 0 ? 4 : capacity * 2;
+
+			long[] oldTickets = tickets;
+			TicketState[] oldStates = states;
+			tickets = new long[capacity];
+			states = new TicketState[capacity];
+			System.arraycopy(oldTickets, 0, tickets, 0, oldCapacity);
+			System.arraycopy(oldStates, 0, states, 0, oldCapacity);
+
+			tree = new long[capacity + 1];
+			for (int i = 1; i <= capacity; i++) {
+				tree[i] += tickets[i - 1];
+				int parent = i + (i & -i);
+				if (parent <= capacity)
+					tree[parent] += tree[i];
 			}
-			effectivePriority += delta;
-			for (PriorityQueue queue:waiting)
-				queue.waitQueue.add(thread);
-			/**
-			 * ERROR FIXED: although I don't care about the order of ep in waitQueue and I use timeTable
-			 * to decide contains;
-			 * but when I want to use the treeSet to add and remove, the original one was in a wrong place,
-			 * so I can't remove them correctly
-			 */
-			LotteryQueue queue = null;
-			for (PriorityQueue q:waiting) {
-				queue = (LotteryQueue)q;
-				queue.sum += delta;
-				if (!queue.transferPriority || queue.owner == null) continue;
-					LotteryState ownerState = getThreadState(queue.owner);
-					ownerState.delta = delta;
-					ownerState.updatePriority();
+
+			// hand out the new slots lowest first
+			freeSlots = new int[capacity];
+			for (int slot = capacity - 1; slot >= oldCapacity; slot--)
+				freeSlots[free++] = slot;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			System.out.println("--------start-"+toString()+"----"
+					+(owner == null? "null":owner.getName())
+					+"transfer:"+transferPriority+", sum:"+sum+"--------");
+			for (int slot = 0; slot < capacity; slot++) {
+				if (states[slot] == null) continue;
+				System.out.println(states[slot].thread.name
+						+", p:"+states[slot].priority
+						+", tickets:"+tickets[slot]);
 			}
-			delta = 0;
+			System.out.println("--------end--------");
 		}
-		
-		public int delta = 0;
-		/**
-		 * ERROR FIXED: whatever the type, new filed will overwrite the field of the same name in the parent class
-		 * so I cannot redefine the owning and waiting queue with lotteryQueue
-		 */
-		
+
+		/** The number of waiting threads. */
+		private int count = 0;
+
+		/** The number of slots; always a power of two, or zero. */
+		private int capacity = 0;
+		/** Fenwick tree over <tt>tickets</tt>, indexed from 1. */
+		private long[] tree = new long[1];
+		private long[] tickets = new long[0];
+		private TicketState[] states = new TicketState[0];
+		private int[] freeSlots = new int[0];
+		private int free = 0;
+		private HashMap<KThread, Integer> slots = new HashMap<KThread, Integer>();
 	}
-	
 }
@@ -0,0 +1,329 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import nachos.machine.Config;
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+import nachos.machine.Stats;
+
+/**
+ * A multi-level feedback queue scheduler, which favors threads that use the
+ * processor in short bursts over threads that compute for long stretches.
+ *
+ * <p>
+ * Ready threads wait in one FIFO list per level, and the next thread to run is
+ * always taken from the highest non-empty level (level 0 is the highest).
+ * Every thread starts at level 0. A thread at level <i>l</i> may run for
+ * <i>quantum * 2<sup>l</sup></i> timer interrupts; a thread that uses all of
+ * that moves down a level, and a thread that gives up the processor by
+ * blocking moves up one. Every <tt>boostInterval</tt> ticks all threads return
+ * to level 0, so that threads that were demoted cannot starve. Preemption
+ * only happens at timer interrupts: a thread of a higher level that becomes
+ * ready runs at the next timer interrupt, not at once.
+ *
+ * <p>
+ * Only the ready queue is multi-level. Other queues are FIFO, and priority is
+ * never transferred.
+ *
+ * <p>
+ * The levels, base quantum and boost interval are read from
+ * <tt>MLFQScheduler.levels</tt>, <tt>MLFQScheduler.quantum</tt> and
+ * <tt>MLFQScheduler.boostInterval</tt>. For each level, the statistics printed
+ * when Nachos halts give the number of dispatches, the average response time
+ * (from becoming ready until running) and the average turnaround (from becoming
+ * ready until giving up the processor again).
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		levels = Config.getInteger("MLFQScheduler.levels", 3);
+		quantum = Config.getInteger("MLFQScheduler.quantum", 1);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 20000);
+		Lib.assertTrue(levels > 0 && levels < 32 && quantum > 0
+				&& boostInterval > 0);
+
+		dispatches = new int[levels];
+		responseTicks = new long[levels];
+		bursts = new int[levels];
+		turnaroundTicks = new long[levels];
+		nextBoost = boostInterval;
+
+		Stats.addReport(new Runnable() {
+			public void run() {
+				printStats();
+			}
+		});
+	}
+
+	/**
+	 * Allocate a new FIFO thread queue.
+	 *
+	 * @param transferPriority
+	 *            ignored.
+	 * @return a new FIFO thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return fifo.newThreadQueue(transferPriority);
+	}
+
+	/**
+	 * Allocate the multi-level ready queue.
+	 *
+	 * @return the ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		Lib.assertTrue(readyQueue == null);
+
+		readyQueue = new ReadyQueue();
+		return readyQueue;
+	}
+
+	/**
+	 * Charge the current thread for a timer interrupt. Preempt it if its
+	 * quantum is used up, if a thread of a higher level is ready, or if it is
+	 * time to move every thread back to level 0.
+	 */
+	public boolean preempt(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (Machine.timer().getTime() >= nextBoost) {
+			boost();
+			return true;
+		}
+
+		ThreadState state = getThreadState(thread);
+		if (++state.used >= quantum << state.level) {
+			if (state.level < levels - 1)
+				state.level++;
+			state.used = 0;
+			return true;
+		}
+
+		return readyQueue.topLevel() < state.level;
+	}
+
+	/**
+	 * Move every thread back to level 0. Threads that are not in the ready
+	 * queue pick this up the next time their state is looked at.
+	 */
+	private void boost() {
+		epoch++;
+		nextBoost = Machine.timer().getTime() + boostInterval;
+		readyQueue.merge();
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		ThreadState state = (ThreadState) thread.schedulingState;
+		if (state.epoch != epoch) {
+			state.epoch = epoch;
+			state.level = 0;
+			state.used = 0;
+		}
+		return state;
+	}
+
+	private void printStats() {
+		for (int level = 0; level < levels; level++) {
+			System.out.println("MLFQ level " + level + ": dispatches "
+					+ dispatches[level] + ", average response "
+					+ average(responseTicks[level], dispatches[level])
+					+ " ticks, average turnaround "
+					+ average(turnaroundTicks[level], bursts[level])
+					+ " ticks");
+		}
+	}
+
+	private static long average(long total, int count) {
+		return count == 0 ? 0 : total / count;
+	}
+
+	/**
+	 * The ready queue: one FIFO list per level, and a bitmask of the levels
+	 * that have waiting threads.
+	 */
+	private class ReadyQueue extends ThreadQueue {
+		ReadyQueue() {
+			lists = new ArrayList<LinkedList<KThread>>(levels);
+			for (int level = 0; level < levels; level++)
+				lists.add(new LinkedList<KThread>());
+		}
+
+		/**
+		 * Add a thread to the end of the list of its level. A thread that is
+		 * woken up by another thread (rather than yielding) has blocked, so it
+		 * moves up a level first.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (thread != KThread.currentThread()) {
+				if (state.level > 0)
+					state.level--;
+				state.used = 0;
+			}
+
+			state.readyTime = Machine.timer().getTime();
+			state.sequence = nextSequence++;
+			lists.get(state.level).add(thread);
+			mask |= 1 << state.level;
+		}
+
+		/**
+		 * Remove a thread from the list of its level.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			int level = getThreadState(thread).level;
+			if (!lists.get(level).remove(thread))
+				return false;
+			if (lists.get(level).isEmpty())
+				mask &= ~(1 << level);
+			return true;
+		}
+
+		/**
+		 * Remove the first thread of the highest non-empty level. The current
+		 * thread is giving up the processor, which ends its burst.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			long now = Machine.timer().getTime();
+
+			ThreadState current = getThreadState(KThread.currentThread());
+			if (current.running) {
+				current.running = false;
+				bursts[current.dispatchLevel]++;
+				turnaroundTicks[current.dispatchLevel] += now
+						- current.burstStart;
+			}
+
+			if (mask == 0)
+				return null;
+
+			int level = topLevel();
+			KThread thread = lists.get(level).removeFirst();
+			if (lists.get(level).isEmpty())
+				mask &= ~(1 << level);
+
+			ThreadState state = getThreadState(thread);
+			state.running = true;
+			state.dispatchLevel = level;
+			state.burstStart = state.readyTime;
+			dispatches[level]++;
+			responseTicks[level] += now - state.readyTime;
+
+			return thread;
+		}
+
+		/**
+		 * The first thread gets the processor without waiting. Assert that no
+		 * threads are waiting.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(mask == 0);
+		}
+
+		/**
+		 * Return the highest level with a waiting thread, or <tt>levels</tt>
+		 * if no thread is waiting.
+		 */
+		int topLevel() {
+			return mask == 0 ? levels : Integer.numberOfTrailingZeros(mask);
+		}
+
+		/** Move every waiting thread to level 0, keeping arrival order. */
+		void merge() {
+			ArrayList<KThread> all = new ArrayList<KThread>();
+			for (int level = 0; level < levels; level++) {
+				all.addAll(lists.get(level));
+				lists.get(level).clear();
+			}
+			Collections.sort(all, new Comparator<KThread>() {
+				public int compare(KThread a, KThread b) {
+					long sa = ((ThreadState) a.schedulingState).sequence;
+					long sb = ((ThreadState) b.schedulingState).sequence;
+					return sa < sb ? -1 : sa > sb ? 1 : 0;
+				}
+			});
+			lists.get(0).addAll(all);
+			mask = all.isEmpty() ? 0 : 1;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < levels; level++) {
+				System.out.print(level + ":");
+				for (Iterator<KThread> i = lists.get(level).iterator(); i.hasNext();)
+					System.out.print(" " + i.next());
+				System.out.println();
+			}
+		}
+
+		private ArrayList<LinkedList<KThread>> lists;
+		private int mask = 0;
+		private long nextSequence = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/** The level of the thread. */
+		int level = 0;
+		/** Timer interrupts used at this level since the last change. */
+		int used = 0;
+		/** The boost epoch in which <tt>level</tt> was last valid. */
+		int epoch = MLFQScheduler.this.epoch;
+
+		/** When the thread last became ready. */
+		long readyTime;
+		/** Arrival order in the ready queue. */
+		long sequence;
+		/** Whether the thread was dispatched and has not given up the CPU. */
+		boolean running = false;
+		/** The level the thread was dispatched from. */
+		int dispatchLevel;
+		/** When the thread became ready before it was last dispatched. */
+		long burstStart;
+	}
+
+	private int levels;
+	private int quantum;
+	private long boostInterval;
+
+	private RoundRobinScheduler fifo = new RoundRobinScheduler();
+	private ReadyQueue readyQueue = null;
+
+	private int epoch = 0;
+	private long nextBoost;
+
+	private int[] dispatches;
+	private long[] responseTicks;
+	private int[] bursts;
+	private long[] turnaroundTicks;
+}
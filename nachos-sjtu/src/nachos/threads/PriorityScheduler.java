@@ -1,9 +1,7 @@
 package nachos.threads;
 
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.TreeSet;
 import java.util.Set;
 
 import nachos.machine.Lib;
@@ -138,6 +136,13 @@ public class PriorityScheduler extends Scheduler {
 	
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * Waiting threads are kept in one FIFO list per effective priority, and a
+	 * bitmask records which lists are non-empty, so the highest waiting
+	 * priority and the thread to dequeue are found in constant time. Within a
+	 * list threads are in the order in which they started waiting, also after
+	 * a donation has moved them to another list.
 	 */
 	public class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -146,45 +151,55 @@ public class PriorityScheduler extends Scheduler {
 
 		public void waitForAccess(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			if (timeTable.containsKey(thread)) return;
-//			int oldOwnerEp = -1;
-//			if (owner != null) {
-//				Lib.assertTrue(transferPriority);
-//				oldOwnerEp = getThreadState(owner).getEffectivePriority();
-//			}
-			
-			getThreadState(thread).waitForAccess(this);
-			timeTable.put(thread, Machine.timer().getTime());
-//			System.out.println("=================in waitFor time of "+thread.getName()
-//						+" is "+timeTable.get(thread)+"===================");
-			waitQueue.add(thread);
-//			if (thread.getName() == "testThread #7") 
-//				System.out.println("============"+thread.getName()+" waits for "+this+" at time:"+timeTable.get(thread)+"===============");
-			
+			if (contains(thread))
+				return;
+
+			ThreadState state = getThreadState(thread);
+			state.waitForAccess(this);
+			add(state);
+
 			if (owner != null) {
-				updatePriority(owner/*, oldOwnerEp*/);
-				if (owner == thread)
+				if (owner == thread) {
+					updatePriority(owner);
 					owner = null;
+				} else {
+					getThreadState(owner).donationChanged(priorityMinimum - 1,
+							state.getEffectivePriority());
+				}
 			}
 		}
 
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			if (!contains(thread))
+				return false;
+
+			ThreadState state = getThreadState(thread);
+			remove(state);
+			state.stopWaiting(this);
+			if (owner != null)
+				getThreadState(owner).donationChanged(
+						state.getEffectivePriority(), priorityMinimum - 1);
+			return true;
+		}
+
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			
-			if (owner == thread) return;
+
+			if (owner == thread)
+				return;
 			KThread prevOwner = owner;
-//			int oldThreadPriority = getThreadState(thread).getEffectivePriority();
-//			int oldOwnerPriority = prevOwner != null? getThreadState(prevOwner).getEffectivePriority():priorityMinimum-1;
-			
+
 			if (prevOwner != null)
 				getThreadState(prevOwner).release(this);
-			getThreadState(thread).acquire(this);
-			waitQueue.remove(thread);
-			timeTable.remove(thread);
-			
+			ThreadState state = getThreadState(thread);
+			state.acquire(this);
+			if (contains(thread))
+				remove(state);
+
 			if (transferPriority)
 				owner = thread;
-			
+
 			updatePriority(prevOwner);
 			updatePriority(thread);
 		}
@@ -196,100 +211,164 @@ public class PriorityScheduler extends Scheduler {
 				if (transferPriority)
 					updatePriority(prevOwner);
 			}
-			
-			if (next == null) return owner = null;
-			
-//			int oldOwnerEp = prevOwner!=null? getThreadState(prevOwner).getEffectivePriority():-1;
-//			int oldNextEp = getThreadState(next).getEffectivePriority();
-			
-			waitQueue.remove(next);
-//			System.out.println("next = "+next.getName());
-//			System.out.println("contains "+next.getName()+"? "+waitQueue.contains(next));
-			timeTable.remove(next);
-			getThreadState(next).acquire(this);
-		
+
+			if (next == null)
+				return owner = null;
+
+			ThreadState state = getThreadState(next);
+			remove(state);
+			state.acquire(this);
+
 			if (transferPriority)
 				owner = next;
-			
+
 			updatePriority(next);
-//			updatePriority(prevOwner);
 			return next;
 		}
+
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			//print();
+
 			ThreadState nextState = pickNextThread();
-			KThread next = nextState == null? null:nextState.thread;
-			return updateUsingNext(next);			
+			KThread next = nextState == null ? null : nextState.thread;
+			return updateUsingNext(next);
 		}
-		
+
 		private void updatePriority(KThread thread) {
-			if (thread == null) return;
+			if (thread == null)
+				return;
 			getThreadState(thread).updatePriority();
-			//print();
 		}
 
 		/**
-			getThreadState
 		 * Return the next thread that <tt>nextThread()</tt> would return,
 		 * without modifying the state of this queue.
 		 * 
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		public ThreadState pickNextThread() {
-			if (waitQueue.isEmpty()) return null;
-			return getThreadState(waitQueue.first());
+			if (mask == 0)
+				return null;
+			return heads[topPriority()].state;
 		}
-		
+
+		/**
+		 * Return the highest effective priority of the waiting threads, or
+		 * <tt>priorityMinimum - 1</tt> if no thread is waiting.
+		 */
+		protected int topPriority() {
+			return 31 - Integer.numberOfLeadingZeros(mask);
+		}
+
+		/** Return whether <tt>thread</tt> is waiting in this queue. */
+		protected boolean contains(KThread thread) {
+			return entries.containsKey(thread);
+		}
+
+		/** Append a thread that starts waiting to the list of its priority. */
+		protected void add(ThreadState state) {
+			Entry entry = new Entry(state, nextSequence++);
+			entries.put(state.thread, entry);
+			link(entry, state.getEffectivePriority(), tails[state
+					.getEffectivePriority()]);
+		}
+
+		/** Remove a thread that stops waiting. */
+		protected void remove(ThreadState state) {
+			unlink(entries.remove(state.thread));
+		}
+
+		/**
+		 * Move a waiting thread whose effective priority has changed to the
+		 * list of its new priority, keeping that list in arrival order. Called
+		 * before the change is passed on to the owner of this queue.
+		 */
+		protected void reposition(ThreadState state) {
+			Entry entry = entries.get(state.thread);
+			unlink(entry);
+
+			int level = state.getEffectivePriority();
+			Entry after = tails[level];
+			while (after != null && after.sequence > entry.sequence)
+				after = after.prev;
+			link(entry, level, after);
+		}
+
+		/** Insert <tt>entry</tt> into list <tt>level</tt> after <tt>after</tt>. */
+		private void link(Entry entry, int level, Entry after) {
+			entry.level = level;
+			entry.prev = after;
+			entry.next = after == null ? heads[level] : after.next;
+			if (entry.prev == null)
+				heads[level] = entry;
+			else
+				entry.prev.next = entry;
+			if (entry.next == null)
+				tails[level] = entry;
+			else
+				entry.next.prev = entry;
+			mask |= 1 << level;
+		}
+
+		private void unlink(Entry entry) {
+			int level = entry.level;
+			if (entry.prev == null)
+				heads[level] = entry.next;
+			else
+				entry.prev.next = entry.next;
+			if (entry.next == null)
+				tails[level] = entry.prev;
+			else
+				entry.next.prev = entry.prev;
+			entry.prev = entry.next = null;
+			if (heads[level] == null)
+				mask &= ~(1 << level);
+		}
+
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
-			System.out.println("--------start-"+toString()+"----"
-					+(owner == null? "null":owner.getName())
-					+"transfer:"+transferPriority+"--------");
-			for (KThread thread: waitQueue){
-				ThreadState state = getThreadState(thread);
-				System.out.println(thread.name
-						+", p:"+state.priority
-						+", ep:"+state.getEffectivePriority()
-						+", time:"+timeTable.get(thread)
-						+", owning:"+state.owning);
+
+			System.out.println("--------start-" + toString() + "----"
+					+ (owner == null ? "null" : owner.getName()) + "transfer:"
+					+ transferPriority + "--------");
+			for (int level = priorityMaximum; level >= priorityMinimum; level--) {
+				for (Entry entry = heads[level]; entry != null; entry = entry.next) {
+					ThreadState state = entry.state;
+					System.out.println(state.thread.name + ", p:"
+							+ state.priority + ", ep:"
+							+ state.getEffectivePriority() + ", arrival:"
+							+ entry.sequence + ", owning:" + state.owning);
+				}
 			}
 			System.out.println("--------end--------");
 		}
-		
 
 		/**
 		 * <tt>true</tt> if this queue should transfer priority from waiting
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
-		public TreeSet<KThread> waitQueue = new TreeSet<KThread> (
-				new Comparator<KThread>() {
-					public int compare(KThread a, KThread b) {
-						Long timea = timeTable.get(a);
-						Long timeb = timeTable.get(b);
-//						if (a.getName() == "testThread #28" || b.getName() == "testThread #28")
-//							System.out.println("when compare "+a+" to "+b+", timea = "+timea+" timeb = "+timeb);
-						if (timea == null || timeb == null) return 1;
-						int epa = getThreadState(a).getEffectivePriority();
-						int epb = getThreadState(b).getEffectivePriority();
-						if (epa > epb) return -1;
-						if (epa < epb) return 1;
-						//compare in contains
-						/*if (timea == null || timeb == null) {
-							System.out.println(timea+" "+timeb);
-							return a.compareTo(b);
-						}
-						*/
-						if (timea < timeb) return -1;
-						if (timea > timeb) return 1;
-						return a.compareTo(b);
-					}
-				});
-		protected HashMap<KThread, Long> timeTable = new HashMap<KThread, Long>(); 
 		protected KThread owner = null;
+
+		/** A waiting thread's place in the list of its priority. */
+		private class Entry {
+			Entry(ThreadState state, long sequence) {
+				this.state = state;
+				this.sequence = sequence;
+			}
+
+			ThreadState state;
+			long sequence;
+			int level;
+			Entry prev, next;
+		}
+
+		private Entry[] heads = new Entry[priorityMaximum + 1];
+		private Entry[] tails = new Entry[priorityMaximum + 1];
+		/** Bit <i>p</i> is set if the list of priority <i>p</i> is non-empty. */
+		private int mask = 0;
+		private HashMap<KThread, Entry> entries = new HashMap<KThread, Entry>();
+		private long nextSequence = 0;
 	}
 
 	/**
@@ -297,6 +376,12 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * The effective priority is kept up to date as threads start and stop
+	 * waiting. A change is passed along the chain of owners only as far as it
+	 * changes someone's effective priority, and an owner rescans the queues it
+	 * owns only when the donation it loses was the one setting its priority.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	public class ThreadState {
@@ -310,7 +395,7 @@ public class PriorityScheduler extends Scheduler {
 		public ThreadState(KThread thread) {
 			this.thread = thread;
 			effectivePriority = priorityDefault;
-			
+
 			setPriority(priorityDefault);
 		}
 
@@ -329,16 +414,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
 			return effectivePriority;
-			/*effectivePriority = priority;
-			for (PriorityQueue queue: owning) {
-				Lib.assertTrue(queue.transferPriority);
-				if (queue.waitQueue.isEmpty()) continue;
-				effectivePriority = Math.max(effectivePriority, 
-						getThreadState(queue.waitQueue.first()).getEffectivePriority());
-			}
-			return effectivePriority;*/
 		}
 
 		/**
@@ -348,14 +424,11 @@ public class PriorityScheduler extends Scheduler {
 		 *            the new priority.
 		 */
 		public void setPriority(int pr) {
-//			System.out.println("set "+thread.getName()+" from "+priority+" to "+pr);
 			if (priority == pr)
 				return;
-			
-//			int oldEp = effectivePriority;
+
 			this.priority = pr;
-			updatePriority(/*oldEp*/);
-			// implement me
+			updatePriority();
 		}
 
 		/**
@@ -371,7 +444,6 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-//			if (waitQueue.transferPriority)
 			waiting.add(waitQueue);
 			owning.remove(waitQueue);
 		}
@@ -387,67 +459,83 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
-			if (waitQueue.transferPriority) 
+			if (waitQueue.transferPriority)
 				owning.add(waitQueue);
 			waiting.remove(waitQueue);
-			//System.out.println(thread+" owns "+owning);
 		}
-		
+
+		/**
+		 * Called when the associated thread stops waiting in
+		 * <tt>waitQueue</tt> without receiving access.
+		 */
+		private void stopWaiting(PriorityQueue waitQueue) {
+			waiting.remove(waitQueue);
+		}
+
 		private void release(PriorityQueue waitQueue) {
 			owning.remove(waitQueue);
 		}
-		
-		private int calcDirectEffectivePriority() {
+
+		protected int calcDirectEffectivePriority() {
 			int ep = priority;
-			ThreadState next = null;
-			for (PriorityQueue queue: owning) {
+			if (owning.isEmpty())
+				return ep;
+			for (PriorityQueue queue : owning) {
 				Lib.assertTrue(queue.transferPriority);
-				next = queue.pickNextThread();
-				if (next != null)
-					ep = Math.max(ep, next.getEffectivePriority());
+				ep = Math.max(ep, queue.topPriority());
 			}
 			return ep;
 		}
-		
+
+		/**
+		 * Recompute the effective priority from scratch, and pass any change
+		 * on to the owners of the queues this thread waits in.
+		 */
 		protected void updatePriority() {
-			int oldEp = effectivePriority;
 			int newEp = calcDirectEffectivePriority();
-			if (newEp == oldEp) return;
-			
-			for (PriorityQueue queue:waiting) {
-				queue.waitQueue.remove(thread);
-//				System.out.println(queue.waitQueue+" contains "+thread
-//									+"? "+queue.waitQueue.contains(thread));
-			}
+			if (newEp != effectivePriority)
+				setEffectivePriority(newEp);
+		}
+
+		/**
+		 * Called when a thread waiting in a queue this thread owns starts
+		 * donating <tt>newEp</tt> instead of <tt>oldEp</tt>. Either may be
+		 * <tt>priorityMinimum - 1</tt>, for a thread that starts or stops
+		 * waiting.
+		 */
+		protected void donationChanged(int oldEp, int newEp) {
+			if (newEp > effectivePriority)
+				setEffectivePriority(newEp);
+			else if (newEp < oldEp && oldEp == effectivePriority)
+				updatePriority();
+		}
+
+		private void setEffectivePriority(int newEp) {
+			int oldEp = effectivePriority;
 			effectivePriority = newEp;
-			for (PriorityQueue queue:waiting)
-				queue.waitQueue.add(thread);
-			
-			ThreadState ownerState = null;
-			int oldOwnerEp;
-			for (PriorityQueue queue: waiting) {	/*			
-				queue.waitQueue.remove(thread);
-				System.out.println("in update "+queue.waitQueue+" contains "+thread+"? "+queue.waitQueue.contains(thread));
-				queue.waitQueue.add(thread);*/
-				//System.out.println("update "+thread.getName());
-				
-				if (!queue.transferPriority || queue.owner == null) continue;
-				ownerState = getThreadState(queue.owner);
-//				oldOwnerEp = ownerState.getEffectivePriority();
-				ownerState.updatePriority(/*oldOwnerEp*/);
+			if (waiting.isEmpty())
+				return;
+
+			for (PriorityQueue queue : waiting)
+				queue.reposition(this);
+
+			for (PriorityQueue queue : waiting) {
+				if (!queue.transferPriority || queue.owner == null
+						|| queue.owner == thread)
+					continue;
+				getThreadState(queue.owner).donationChanged(oldEp, newEp);
 			}
 		}
+
 		/** The thread with which this object is associated. */
 		protected KThread thread;
 		/** The priority of the associated thread. */
 		protected int priority;
-		protected int effectivePriority = priorityMinimum-1;
-		
-		
-		//only owns queues who transferPriority
+		protected int effectivePriority = priorityMinimum - 1;
+
+		// only owns queues who transferPriority
 		protected Set<PriorityQueue> owning = new HashSet<PriorityQueue>();
 		protected Set<PriorityQueue> waiting = new HashSet<PriorityQueue>();
 	}
-	
-}
\ No newline at end of file
+
+}
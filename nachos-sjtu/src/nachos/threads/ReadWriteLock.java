@@ -1,81 +1,280 @@
 package nachos.threads;
 
-import java.util.LinkedList;
+import java.util.HashSet;
 
+import nachos.machine.Config;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 
+/**
+ * A <tt>ReadWriteLock</tt> is held either by any number of readers or by a
+ * single writer.
+ *
+ * <p>
+ * Writers are preferred: a reader that arrives while a writer holds or is
+ * waiting for the lock waits too. When a writer releases the lock, every
+ * reader waiting at that moment is let in as one batch before the next writer,
+ * so neither readers nor writers can starve.
+ *
+ * <p>
+ * If <tt>ReadWriteLock.transferPriority</tt> is set and the scheduler is a
+ * <tt>PriorityScheduler</tt>, waiting threads donate priority through the
+ * scheduler's queues: waiting writers to a reader holding the lock, and
+ * waiting readers and writers to a writer holding it.
+ */
 public class ReadWriteLock {
+	/**
+	 * Allocate a new read-write lock. The lock will initially be free.
+	 */
 	public ReadWriteLock() {
-		
+		// FIFO queues cannot change owners while threads are waiting, and
+		// would not transfer priority anyway
+		transferPriority = Config.getBoolean("ReadWriteLock.transferPriority",
+				false)
+				&& ThreadedKernel.scheduler instanceof PriorityScheduler;
+		writeQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+		readQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
 	}
-	
+
+	/**
+	 * Atomically wait until no other thread holds this lock and no earlier
+	 * writer is waiting, then hold it for writing. The current thread must not
+	 * already hold this lock.
+	 */
 	public void acquireWrite() {
-		 Lib.assertTrue(!isHeldByCurrentThread());
-		 boolean intStatus = Machine.interrupt().disable();
-		 KThread thread = KThread.currentThread();
-		 
-		 if (holders.isEmpty()) {
-			 waitQueue.acquire(thread);
-			 holders.add(thread);
-			 holderWriteLabel = true;
-		 } else {
-			 waitQueue.waitForAccess(thread);
-			 waitWriteLabel.add(true);
-			 KThread.sleep();			 
-		 }
-		 Machine.interrupt().restore(intStatus);
+		Lib.assertTrue(!isHeldByCurrentThread());
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer == null && readers.isEmpty()) {
+			writer = thread;
+			if (transferPriority) {
+				writeQueue.acquire(thread);
+				readQueue.acquire(thread);
+			}
+		} else {
+			waitingWriters++;
+			writeQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(writer == thread);
+		Machine.interrupt().restore(intStatus);
 	}
-	
+
+	/**
+	 * Atomically wait until no writer holds or is waiting for this lock, then
+	 * hold it for reading along with any other readers. The current thread
+	 * must not already hold this lock.
+	 */
 	public void acquireRead() {
 		Lib.assertTrue(!isHeldByCurrentThread());
 		boolean intStatus = Machine.interrupt().disable();
 		KThread thread = KThread.currentThread();
-		if (holders.isEmpty() || waitWriteLabel.isEmpty() && !holderWriteLabel) {
-			waitQueue.acquire(thread);
-			holders.add(thread);
+
+		if (writer == null && waitingWriters == 0) {
+			readers.add(thread);
+			if (transferPriority && donee == null) {
+				donee = thread;
+				writeQueue.acquire(thread);
+			}
 		} else {
-			waitQueue.waitForAccess(thread);
-			waitWriteLabel.add(false);
+			waitingReaders++;
+			readQueue.waitForAccess(thread);
 			KThread.sleep();
 		}
+
+		Lib.assertTrue(readers.contains(thread));
 		Machine.interrupt().restore(intStatus);
 	}
-	
+
+	/**
+	 * Atomically release this lock. A writer lets in the readers waiting for
+	 * the lock, or failing that the next writer; the last reader out lets in
+	 * the next writer.
+	 */
 	public void release() {
 		Lib.assertTrue(isHeldByCurrentThread());
 		boolean intStatus = Machine.interrupt().disable();
-		holders.clear();
-		if (!waitWriteLabel.isEmpty()) {
-			if (waitWriteLabel.getFirst()) {
-				waitWriteLabel.removeFirst();
-				holderWriteLabel = true;
-				KThread thread = waitQueue.nextThread();
-				holders.add(thread);
-				thread.ready();
-			} else {
-				holderWriteLabel = false;
-				while (!waitWriteLabel.getFirst()) {
-					waitWriteLabel.removeFirst();
-					KThread thread = waitQueue.nextThread();
-					holders.add(thread);
-					thread.ready();
-				}
+		KThread thread = KThread.currentThread();
+
+		if (writer == thread) {
+			writer = null;
+			if (waitingReaders > 0)
+				admitReaders();
+			else if (waitingWriters > 0)
+				admitWriter();
+			else
+				free();
+		} else {
+			readers.remove(thread);
+			if (readers.isEmpty()) {
+				donee = null;
+				if (waitingWriters > 0)
+					admitWriter();
+				else
+					free();
+			} else if (donee == thread) {
+				// waiting writers keep donating to a reader that holds the lock
+				donee = readers.iterator().next();
+				writeQueue.acquire(donee);
 			}
 		}
+
 		Machine.interrupt().restore(intStatus);
 	}
+
 	/**
-	 * 
-	 * @return true if currentThread held the write or read Lock
+	 * Test if the current thread holds this lock, for reading or for writing.
+	 *
+	 * @return true if the current thread holds this lock.
 	 */
 	public boolean isHeldByCurrentThread() {
-		return holders.contains(KThread.currentThread());
+		KThread thread = KThread.currentThread();
+		return writer == thread || readers.contains(thread);
 	}
-	
-	private static LinkedList<KThread> holders = new LinkedList<KThread>();
-	private static boolean holderWriteLabel = false;
-	private static ThreadQueue waitQueue = new RoundRobinScheduler().newThreadQueue(true);
-	private static LinkedList<Boolean> waitWriteLabel = new LinkedList<Boolean>();
 
+	/** Let in every waiting reader as one batch. */
+	private void admitReaders() {
+		KThread thread;
+		while ((thread = readQueue.nextThread()) != null) {
+			readers.add(thread);
+			thread.ready();
+		}
+		waitingReaders = 0;
+
+		if (transferPriority) {
+			if (waitingWriters > 0) {
+				donee = readers.iterator().next();
+				writeQueue.acquire(donee);
+			} else {
+				writeQueue.nextThread();
+			}
+		}
+	}
+
+	/** Let in the first waiting writer. */
+	private void admitWriter() {
+		writer = writeQueue.nextThread();
+		waitingWriters--;
+		writer.ready();
+
+		if (transferPriority)
+			readQueue.acquire(writer);
+	}
+
+	/** Nobody holds the lock any more; clear the owners of the queues. */
+	private void free() {
+		if (transferPriority) {
+			writeQueue.nextThread();
+			readQueue.nextThread();
+		}
+	}
+
+	/**
+	 * A thread that takes the lock for reading or writing, and holds it until
+	 * told to let go.
+	 */
+	private static class Holder implements Runnable {
+		Holder(ReadWriteLock lock, boolean write, String name) {
+			this.lock = lock;
+			this.write = write;
+			thread = new KThread(this).setName(name);
+		}
+
+		public void run() {
+			// nothing can switch threads between arriving and asking for the
+			// lock
+			boolean intStatus = Machine.interrupt().disable();
+			arrived.V();
+			if (write)
+				lock.acquireWrite();
+			else
+				lock.acquireRead();
+			Machine.interrupt().restore(intStatus);
+
+			leave.P();
+			lock.release();
+			done.V();
+		}
+
+		/**
+		 * Fork the thread and return once it either holds the lock or waits
+		 * for it.
+		 */
+		Holder start() {
+			thread.fork();
+			arrived.P();
+			return this;
+		}
+
+		/** Let the thread release the lock, once it has it, and wait for that. */
+		void finish() {
+			leave.V();
+			done.P();
+		}
+
+		private ReadWriteLock lock;
+		private boolean write;
+		private KThread thread;
+		private Semaphore arrived = new Semaphore(0);
+		private Semaphore leave = new Semaphore(0);
+		private Semaphore done = new Semaphore(0);
+	}
+
+	/**
+	 * Test if this module is working.
+	 */
+	public static void selfTest() {
+		ReadWriteLock lock = new ReadWriteLock();
+
+		// two readers share the lock
+		lock.acquireRead();
+		Holder a = new Holder(lock, false, "a").start();
+		Lib.assertTrue(lock.readers.contains(a.thread));
+		a.finish();
+
+		// a reader arriving after a waiting writer waits for it
+		Holder w = new Holder(lock, true, "W").start();
+		Holder b = new Holder(lock, false, "b").start();
+		Lib.assertTrue(lock.writer == null && lock.waitingWriters == 1);
+		Lib.assertTrue(!lock.readers.contains(b.thread)
+				&& lock.waitingReaders == 1);
+		lock.release();
+		Lib.assertTrue(lock.writer == w.thread && lock.readers.isEmpty());
+		w.finish();
+		Lib.assertTrue(lock.writer == null && lock.readers.contains(b.thread));
+		b.finish();
+
+		// a writer lets in every waiting reader as one batch, even those
+		// that arrived after the next writer
+		lock.acquireWrite();
+		Holder[] batch = new Holder[3];
+		batch[0] = new Holder(lock, false, "r0").start();
+		batch[1] = new Holder(lock, false, "r1").start();
+		Holder x = new Holder(lock, true, "X").start();
+		batch[2] = new Holder(lock, false, "r2").start();
+		lock.release();
+		Lib.assertTrue(lock.writer == null && lock.readers.size() == 3
+				&& lock.waitingWriters == 1);
+		for (Holder reader : batch) {
+			Lib.assertTrue(lock.readers.contains(reader.thread));
+			reader.finish();
+		}
+		Lib.assertTrue(lock.writer == x.thread);
+		x.finish();
+		Lib.assertTrue(lock.writer == null && lock.readers.isEmpty());
+	}
+
+	private boolean transferPriority;
+
+	private KThread writer = null;
+	private HashSet<KThread> readers = new HashSet<KThread>();
+	/** The reader that waiting writers donate to. */
+	private KThread donee = null;
+
+	private ThreadQueue writeQueue;
+	private int waitingWriters = 0;
+	private ThreadQueue readQueue;
+	private int waitingReaders = 0;
 }
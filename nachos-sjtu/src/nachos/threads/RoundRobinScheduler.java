@@ -43,6 +43,15 @@ public class RoundRobinScheduler extends Scheduler {
 			waitQueue.add(thread);
 		}
 
+		/**
+		 * Remove a thread from wherever it is in the queue.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			return waitQueue.remove(thread);
+		}
+
 		/**
 		 * Remove a thread from the beginning of the queue.
 		 * 
@@ -51,6 +51,30 @@ public abstract class Scheduler {
 	 */
 	public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+	/**
+	 * Allocate the queue of threads waiting for the processor. This is called
+	 * once, when the first <tt>KThread</tt> is created. By default it is an
+	 * ordinary queue that does not transfer priority.
+	 * 
+	 * @return the ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return newThreadQueue(false);
+	}
+
+	/**
+	 * Called by the timer interrupt handler with interrupts disabled. Return
+	 * whether the current thread should give up the processor. By default
+	 * every timer interrupt preempts it.
+	 * 
+	 * @param thread
+	 *            the current thread.
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean preempt(KThread thread) {
+		return true;
+	}
+
 	/**
 	 * Get the priority of the specified thread. Must be called with interrupts
 	 * disabled.
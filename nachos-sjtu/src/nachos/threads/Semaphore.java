@@ -29,7 +29,21 @@ public class Semaphore {
 	 *            the initial value of this semaphore.
 	 */
 	public Semaphore(int initialValue) {
+		this(initialValue, null);
+	}
+
+	/**
+	 * Allocate a new semaphore with a name, under which <tt>LockProfiler</tt>
+	 * reports it.
+	 * 
+	 * @param initialValue
+	 *            the initial value of this semaphore.
+	 * @param name
+	 *            the name of the semaphore.
+	 */
+	public Semaphore(int initialValue, String name) {
 		value = initialValue;
+		profile = LockProfiler.record("Semaphore", name);
 	}
 
 	/**
@@ -38,16 +52,48 @@ public class Semaphore {
 	public void P() {
 		boolean intStatus = Machine.interrupt().disable();
 
-		if (value == 0) {
+		boolean contended = value == 0;
+		long since = profile == null ? 0 : LockProfiler.now();
+		if (contended) {
 			waitQueue.waitForAccess(KThread.currentThread());
 			KThread.sleep();
 		} else {
 			value--;
 		}
+		if (profile != null)
+			profile.acquired(contended, since);
 
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Like <tt>P()</tt>, but give up if the semaphore is still zero after
+	 * <i>timeout</i> ticks.
+	 * 
+	 * @param timeout
+	 *            the minimum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the semaphore was decremented, or
+	 *         <tt>false</tt> if the wait timed out.
+	 */
+	public boolean P(long timeout) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean decremented = true;
+		boolean contended = value == 0;
+		long since = profile == null ? 0 : LockProfiler.now();
+		if (contended) {
+			waitQueue.waitForAccess(KThread.currentThread());
+			decremented = TimedWait.sleep(waitQueue, timeout);
+		} else {
+			value--;
+		}
+		if (profile != null && decremented)
+			profile.acquired(contended, since);
+
+		Machine.interrupt().restore(intStatus);
+		return decremented;
+	}
+
 	/**
 	 * Atomically increment this semaphore and wake up at most one other thread
 	 * sleeping on this semaphore.
@@ -100,4 +146,6 @@ public class Semaphore {
 	private int value;
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(false);
+
+	private LockProfiler.Record profile;
 }
@@ -0,0 +1,210 @@
+package nachos.threads;
+
+import java.util.HashMap;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A scheduler that shares the CPU in proportion to tickets, like a lottery
+ * scheduler, but deterministically.
+ *
+ * <p>
+ * Each thread has a stride inversely proportional to its tickets. Every queue
+ * keeps a pass value for each waiting thread and hands out access to the
+ * thread with the lowest pass, breaking ties in favor of the thread that has
+ * been waiting longest. A thread that starts waiting gets the pass of the
+ * last thread to leave the queue plus its own stride, so over time each thread
+ * is chosen in proportion to its tickets, without the variance of a lottery.
+ *
+ * <p>
+ * Tickets are transferred through locks and joins exactly as in a
+ * <tt>LotteryScheduler</tt>: the tickets of the threads waiting in a queue add
+ * to those of its owner.
+ */
+public class StrideScheduler extends TicketScheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority
+	 *            <tt>true</tt> if this queue should transfer tickets from
+	 *            waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	/**
+	 * The stride of a thread holding <tt>tickets</tt> tickets.
+	 */
+	static long stride(int tickets) {
+		return stride1 / Math.max(tickets, 1);
+	}
+
+	/**
+	 * The stride of a thread with a single ticket. Large enough that strides
+	 * stay distinct for any number of tickets an <tt>int</tt> can hold.
+	 */
+	private static final long stride1 = 1L << 32;
+
+	/**
+	 * A <tt>ThreadQueue</tt> that hands out access in order of pass value. The
+	 * waiting threads are kept in a binary heap keyed on pass value and
+	 * arrival, so every operation takes time logarithmic in the number of
+	 * waiting threads.
+	 */
+	public class StrideQueue extends TicketQueue {
+		StrideQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		public TicketState pickNextThread() {
+			if (size == 0)
+				return null;
+			return heap[0].state;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (size > 0)
+				pass = heap[0].pass;
+			return super.nextThread();
+		}
+
+		protected boolean contains(KThread thread) {
+			return entries.containsKey(thread);
+		}
+
+		protected void add(ThreadState state) {
+			Entry entry = new Entry((TicketState) state, pass
+					+ stride(state.getEffectivePriority()), nextSequence++);
+			entries.put(state.thread, entry);
+
+			if (size == heap.length) {
+				Entry[] bigger = new Entry[heap.length * 2];
+				System.arraycopy(heap, 0, bigger, 0, size);
+				heap = bigger;
+			}
+			entry.index = size++;
+			heap[entry.index] = entry;
+			siftUp(entry);
+
+			sum += state.getEffectivePriority();
+		}
+
+		protected void remove(ThreadState state) {
+			Entry entry = entries.remove(state.thread);
+			sum -= entry.tickets;
+
+			Entry last = heap[--size];
+			heap[size] = null;
+			if (last != entry) {
+				last.index = entry.index;
+				heap[last.index] = last;
+				siftUp(last);
+				siftDown(last);
+			}
+		}
+
+		/**
+		 * A waiting thread's tickets changed. Scale what is left of its stride
+		 * to the new stride, as if it had been waiting with the new tickets
+		 * all along.
+		 */
+		protected void reposition(ThreadState state) {
+			Entry entry = entries.get(state.thread);
+			int tickets = state.getEffectivePriority();
+
+			double scale = (double) stride(tickets) / stride(entry.tickets);
+			entry.pass = pass + (long) ((entry.pass - pass) * scale);
+			sum += (long) tickets - entry.tickets;
+			entry.tickets = tickets;
+
+			siftUp(entry);
+			siftDown(entry);
+		}
+
+		private void siftUp(Entry entry) {
+			int i = entry.index;
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (!heap[parent].after(entry))
+					break;
+				heap[i] = heap[parent];
+				heap[i].index = i;
+				i = parent;
+			}
+			heap[i] = entry;
+			entry.index = i;
+		}
+
+		private void siftDown(Entry entry) {
+			int i = entry.index;
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && heap[child].after(heap[child + 1]))
+					child++;
+				if (!entry.after(heap[child]))
+					break;
+				heap[i] = heap[child];
+				heap[i].index = i;
+				i = child;
+			}
+			heap[i] = entry;
+			entry.index = i;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			System.out.println("--------start-" + toString() + "----"
+					+ (owner == null ? "null" : owner.getName()) + "transfer:"
+					+ transferPriority + ", pass:" + pass + "--------");
+			for (int i = 0; i < size; i++) {
+				System.out.println(heap[i].state.thread.name + ", p:"
+						+ heap[i].state.priority + ", tickets:"
+						+ heap[i].tickets + ", pass:" + heap[i].pass);
+			}
+			System.out.println("--------end--------");
+		}
+
+		/** A waiting thread's place in the heap. */
+		private class Entry {
+			Entry(TicketState state, long pass, long sequence) {
+				this.state = state;
+				this.pass = pass;
+				this.sequence = sequence;
+				this.tickets = state.getEffectivePriority();
+			}
+
+			/** Return whether this entry should be chosen after <tt>e</tt>. */
+			boolean after(Entry e) {
+				if (pass != e.pass)
+					return pass > e.pass;
+				return sequence > e.sequence;
+			}
+
+			TicketState state;
+			long pass;
+			long sequence;
+			int tickets;
+			int index;
+		}
+
+		/** The pass of the thread that last left this queue. */
+		private long pass = 0;
+
+		private Entry[] heap = new Entry[4];
+		private int size = 0;
+		private HashMap<KThread, Entry> entries = new HashMap<KThread, Entry>();
+		private long nextSequence = 0;
+	}
+}
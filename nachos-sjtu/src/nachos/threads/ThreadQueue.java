@@ -61,6 +61,18 @@ public abstract class ThreadQueue {
 	 */
 	public abstract void waitForAccess(KThread thread);
 
+	/**
+	 * Notify this thread queue that the specified thread has stopped waiting
+	 * for access without receiving it (e.g. because its wait timed out). If
+	 * the limited access object transfers priority, the thread no longer
+	 * donates priority to the thread that has access.
+	 * 
+	 * @param thread
+	 *            the thread that stops waiting.
+	 * @return <tt>true</tt> if the thread was waiting in this queue.
+	 */
+	public abstract boolean remove(KThread thread);
+
 	/**
 	 * Notify this thread queue that another thread can receive access. Choose
 	 * and return the next thread to receive access, or <tt>null</tt> if there
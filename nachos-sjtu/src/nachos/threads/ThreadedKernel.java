@@ -49,6 +49,8 @@ public class ThreadedKernel extends Kernel {
 		KThread.selfTest();
 		Semaphore.selfTest();
 		SynchList.selfTest();
+		ReadWriteLock.selfTest();
+		Channel.selfTest();
 	}
 
 	/**
@@ -0,0 +1,95 @@
+package nachos.threads;
+
+import nachos.machine.Lib;
+import nachos.machine.Machine;
+
+/**
+ * A priority scheduler whose priorities are tickets. The lottery and stride
+ * schedulers differ only in how a queue picks among its waiting threads; what
+ * a thread holds is the same for both.
+ *
+ * <p>
+ * Tickets are transferred through locks and joins, and unlike priorities they
+ * add up: the effective priority of a thread is its own tickets, plus the
+ * tickets of every thread waiting in a queue it owns.
+ */
+public abstract class TicketScheduler extends PriorityScheduler {
+	/**
+	 * Allocate a new ticket scheduler.
+	 */
+	public TicketScheduler() {
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread
+	 *            the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected TicketState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new TicketState(thread);
+
+		return (TicketState) thread.schedulingState;
+	}
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps the total number of tickets held by its
+	 * waiting threads up to date in <tt>sum</tt>.
+	 */
+	public abstract class TicketQueue extends PriorityQueue {
+		TicketQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		/** The total number of tickets held by the waiting threads. */
+		protected long sum = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under a ticket scheduler. Its effective
+	 * priority is the number of tickets it holds: its own, plus those of every
+	 * thread waiting in a queue it owns.
+	 */
+	public class TicketState extends ThreadState {
+		public TicketState(KThread thread) {
+			super(thread);
+		}
+
+		@Override
+		protected int calcDirectEffectivePriority() {
+			long ep = priority;
+			for (PriorityQueue queue : owning)
+				ep += ((TicketQueue) queue).sum;
+			return (int) Math.min(ep, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Tickets add up, so any change of a waiter's tickets changes ours;
+		 * the sums of the queues we own are already up to date.
+		 */
+		@Override
+		protected void donationChanged(int oldEp, int newEp) {
+			updatePriority();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package nachos.threads;
+
+/**
+ * The timeout handler of a thread waiting in a thread queue with a time limit.
+ * When the time is up, the handler takes the thread out of the queue and
+ * readies it, unless it has already been given access. Only run with
+ * interrupts disabled, like any alarm handler.
+ */
+class TimedWait implements Runnable {
+	/**
+	 * Allocate a handler for <i>thread</i>, which is about to wait in
+	 * <i>waitQueue</i>.
+	 */
+	TimedWait(ThreadQueue waitQueue, KThread thread) {
+		this.waitQueue = waitQueue;
+		this.thread = thread;
+	}
+
+	public void run() {
+		if (waitQueue.remove(thread)) {
+			timedOut = true;
+			thread.ready();
+		}
+	}
+
+	/**
+	 * Wait in the queue until another thread gives the current thread access,
+	 * or <i>timeout</i> ticks have passed. Interrupts must be disabled, and the
+	 * current thread must already be waiting in the queue.
+	 * 
+	 * @param timeout
+	 *            the minimum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the current thread was given access, or
+	 *         <tt>false</tt> if the wait timed out.
+	 */
+	static boolean sleep(ThreadQueue waitQueue, long timeout) {
+		TimedWait wait = new TimedWait(waitQueue, KThread.currentThread());
+		Alarm.Timeout alarm = ThreadedKernel.alarm.schedule(timeout, wait);
+		KThread.sleep();
+		// only frees the timeout; whether it ran says nothing about who woke
+		// us, since it may have expired after access was given
+		alarm.cancel();
+		return !wait.timedOut;
+	}
+
+	private ThreadQueue waitQueue;
+	private KThread thread;
+	private boolean timedOut = false;
+}
@@ -27,12 +27,12 @@ public class UserKernel extends ThreadedKernel {
 		console = new SynchConsole(Machine.console());
 
 		//pageTable
-		phyPageTableLock = new Lock();
+		phyPageTableLock = new Lock("UserKernel.phyPageTableLock");
 		int totalPageNum = Machine.processor().getNumPhysPages();
 		for (int i = 0; i < totalPageNum; ++i) 
 			freePages.add(i);
 		
-		runningProcessesLock = new Lock();
+		runningProcessesLock = new Lock("UserKernel.runningProcessesLock");
 		
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
@@ -255,6 +255,154 @@ public class UserProcess {
 		}
 		return totalAmount;
 	}
+
+	/**
+	 * Transfer data between <i>file</i> and this process's virtual memory
+	 * straight into or out of main memory, without an intermediate buffer.
+	 * The pages of the user buffer are pinned in batches of up to
+	 * <tt>maxPinnedPages()</tt>, and each batch is one vectored request to the
+	 * file, with physically contiguous pages merged into one piece. A batch is
+	 * cut short if <tt>pinPage()</tt> cannot pin a page until the batch is
+	 * done. Stops early if the file transfers less than a whole batch.
+	 * 
+	 * @param file
+	 *            the file to read from or write to.
+	 * @param vaddr
+	 *            the first byte of virtual memory to transfer.
+	 * @param length
+	 *            the number of bytes to transfer.
+	 * @param read
+	 *            <tt>true</tt> to read the file into memory, <tt>false</tt>
+	 *            to write memory to the file.
+	 * @return the number of bytes transferred, which stops short at the first
+	 *         page that is invalid (or read-only, when reading) or at an
+	 *         error, or -1 if nothing could be transferred.
+	 */
+	protected int transferFile(OpenFile file, int vaddr, int length, boolean read) {
+		if (length < 0 || !validVaddr(vaddr))
+			return -1;
+
+		int maxPages = maxPinnedPages();
+		if (pieceOffsets == null || pieceOffsets.length < maxPages) {
+			pieceOffsets = new int[maxPages];
+			pieceLengths = new int[maxPages];
+		}
+
+		byte[] memory = Machine.processor().getMemory();
+		int totalAmount = 0;
+		while (length > 0) {
+			int pieces = 0, pages = 0, amount = 0, cnt = 0;
+			boolean valid = true;
+
+			beginPinning();
+			try {
+				while (length > 0 && pages < maxPages) {
+					if (!validVaddr(vaddr)) {
+						valid = false;
+						break;
+					}
+					int pageOffset = Processor.offsetFromAddress(vaddr);
+					int ppn = pinPage(Processor.pageFromAddress(vaddr), read);
+					if (ppn == pinLater && pages > 0)
+						break;
+					if (ppn < 0) {
+						valid = false;
+						break;
+					}
+					pages++;
+
+					int paddr = Processor.makeAddress(ppn, pageOffset);
+					int n = Math.min(length, pageSize-pageOffset);
+					if (pieces > 0 && pieceOffsets[pieces-1]+pieceLengths[pieces-1] == paddr) {
+						pieceLengths[pieces-1] += n;
+					} else {
+						pieceOffsets[pieces] = paddr;
+						pieceLengths[pieces] = n;
+						pieces++;
+					}
+					vaddr += n;
+					length -= n;
+					amount += n;
+				}
+			} finally {
+				endPinning();
+			}
+
+			// transfer whatever was pinned before an invalid page, if anything
+			try {
+				if (pieces > 0)
+					cnt = read ? file.read(memory, pieceOffsets, pieceLengths, pieces)
+							: file.write(memory, pieceOffsets, pieceLengths, pieces);
+			} finally {
+				unpinPages();
+			}
+
+			if (cnt < 0)
+				return totalAmount == 0 ? -1 : totalAmount;
+			totalAmount += cnt;
+			if (!valid)
+				return totalAmount == 0 ? -1 : totalAmount;
+			if (cnt < amount)
+				break;
+		}
+		return totalAmount;
+	}
+
+	/**
+	 * Called before the pages of a batch of <tt>transferFile()</tt> are
+	 * pinned.
+	 */
+	protected void beginPinning() {
+	}
+
+	/**
+	 * Called once the pages of a batch of <tt>transferFile()</tt> are pinned,
+	 * before the file is read or written.
+	 */
+	protected void endPinning() {
+	}
+
+	/**
+	 * Called after a batch of <tt>transferFile()</tt>, to unpin its pages.
+	 */
+	protected void unpinPages() {
+	}
+
+	/**
+	 * Return how many pages <tt>transferFile()</tt> may pin at a time.
+	 */
+	protected int maxPinnedPages() {
+		return 16;
+	}
+
+	/**
+	 * Look up the physical page behind <i>vpn</i> and keep it there until
+	 * <tt>unpinPages()</tt>. Marks the page used, and dirty if it is going to
+	 * be written.
+	 * 
+	 * @param vpn
+	 *            the virtual page.
+	 * @param write
+	 *            whether the page is going to be written.
+	 * @return the physical page number, -1 if the page is invalid, or
+	 *         read-only and <i>write</i> is set, or <tt>pinLater</tt> if the
+	 *         page cannot be pinned until the pages already pinned for this
+	 *         batch are unpinned.
+	 */
+	protected int pinPage(int vpn, boolean write) {
+		pageTableLock.acquire();
+		TranslationEntry entry = pageTable[vpn];
+		if (!entry.valid || write && entry.readOnly) {
+			pageTableLock.release();
+			return -1;
+		}
+		entry.used = true;
+		if (write) entry.dirty = true;
+		pageTableLock.release();
+		// pages stay put for the life of the process
+		return entry.ppn;
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and
 	 * prepare to pass it the specified arguments. Opens the executable, reads
@@ -758,10 +906,7 @@ public class UserProcess {
 			OpenFile file = getFile(fd);
 			if (file == null) return -1;
 			
-			byte data[] = new byte[size];
-			int readCnt = file.read(data, 0, size);
-			if (readCnt < 0) return -1;
-			return writeVirtualMemory(bufferVaddr, data, 0, readCnt);
+			return transferFile(file, bufferVaddr, size, true);
 		} catch (Exception e) {
 			if (lock.isHeldByCurrentThread()) lock.release();
 			return -1;
@@ -792,10 +937,7 @@ public class UserProcess {
 			OpenFile file = getFile(fd);
 			if (file == null) return -1;
 			
-			byte data[] = new byte[size];
-			int readCnt = readVirtualMemory(bufferVaddr, data);
-			if (readCnt < size) return -1;	// can this happen ?? TODO
-			int writeCnt = file.write(data, 0, size);
+			int writeCnt = transferFile(file, bufferVaddr, size, false);
 			if (writeCnt < size) return -1;
 			return writeCnt;
 		} catch (Exception e) {
@@ -955,7 +1097,7 @@ public class UserProcess {
 
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
-	protected Lock pageTableLock = new Lock();
+	protected Lock pageTableLock = new Lock("UserProcess.pageTableLock");
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
 
@@ -965,6 +1107,12 @@ public class UserProcess {
 	private int initialPC, initialSP;
 	private int argc, argv;
 
+	/** Returned by <tt>pinPage()</tt> to cut a batch short. */
+	protected static final int pinLater = -2;
+
+	/** The pieces of main memory of a batch of <tt>transferFile()</tt>. */
+	private int[] pieceOffsets, pieceLengths;
+
 	private static final int pageSize = Processor.pageSize;
 	private static final char dbgProcess = 'a';
 	
@@ -973,13 +1121,13 @@ public class UserProcess {
 //	private static final int maxFileNum = 16;
 	protected ArrayList<OpenFile> fileTable = new ArrayList<OpenFile>();
 	protected TreeSet<Integer> freeFD = new TreeSet<Integer>();	//FD stands for file descriptor
-	protected Lock lock = new Lock();
+	protected Lock lock = new Lock("UserProcess.lock");
 	private static int numCreated = 0;
 	protected int pid = numCreated++;
 	
 	//for phase2 multiprogramming handle the processes
 	UThread thread = null;
-	private Lock processLock = new Lock();
+	private Lock processLock = new Lock("UserProcess.processLock");
 	/** on exit, the child process just set its status to nothing but exist instead of explicitly notify the parent.
 	 *  parent may check whether the child is exist or not by looking it up children and check status;
 	 *  only after join will the parent disown the child, i.e. children.remove(child);
@@ -12,6 +12,7 @@ import nachos.machine.Machine;
 import nachos.machine.OpenFile;
 import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
+import nachos.threads.Condition2;
 import nachos.threads.Lock;
 import nachos.userprog.UserKernel;
 
@@ -36,7 +37,8 @@ public class VMKernel extends UserKernel {
 	}
 	protected void initExceptSwap(String[] args) {
 		super.initialize(args);
-		IPTLock = new Lock();
+		IPTLock = new Lock("VMKernel.IPTLock");
+		unpinned = new Condition2(IPTLock, "VMKernel.unpinned");
 //		TLBLock = new Lock();
 		phyPages = new VMPage[pageNum];
 		for (int i = 0; i < pageNum; ++i) phyPages[i] = null;
@@ -225,6 +227,8 @@ public class VMKernel extends UserKernel {
 	static int obtainFreePPN(int pid) {
 		Lib.assertTrue(IPTLock.isHeldByCurrentThread());
 		int ppn = -1;
+		while (!canObtainFreePPN())
+			unpinned.sleep();
 		if (IPT.size() < pageNum) {
 			for (;;clockPointer = (clockPointer+1)%pageNum) {
 				if (phyPages[clockPointer] == null) {
@@ -240,6 +244,8 @@ public class VMKernel extends UserKernel {
 			TranslationEntry entry = null;
 			VMPage page = null;
 			for (;;clockPointer = (clockPointer+1)%pageNum) {
+				if (pinCount[clockPointer] > 0)
+					continue;
 				page = phyPages[clockPointer];
 				entry = IPT.get(page);
 				if (!entry.used) {
@@ -272,6 +278,31 @@ public class VMKernel extends UserKernel {
 		clockPointer = (clockPointer+1)%pageNum;
 		return ppn;
 	}
+	/**
+	 * Return whether <tt>obtainFreePPN()</tt> can return a frame without
+	 * waiting for one to be unpinned.
+	 */
+	static boolean canObtainFreePPN() {
+		Lib.assertTrue(IPTLock.isHeldByCurrentThread());
+		return IPT.size() < pageNum || pinnedFrames < pageNum;
+	}
+	/**
+	 * Keep the page in frame <i>ppn</i> from being swapped out until it is
+	 * unpinned as often as it was pinned. Pins are counted under
+	 * <tt>IPTLock</tt>, but the lock need not be held while a frame stays
+	 * pinned.
+	 */
+	static void pin(int ppn) {
+		Lib.assertTrue(IPTLock.isHeldByCurrentThread());
+		if (pinCount[ppn]++ == 0)
+			++pinnedFrames;
+	}
+	static void unpin(int ppn) {
+		Lib.assertTrue(IPTLock.isHeldByCurrentThread());
+		Lib.assertTrue(pinCount[ppn] > 0);
+		if (--pinCount[ppn] == 0 && pinnedFrames-- == pageNum)
+			unpinned.wakeAll();
+	}
 	static void addIPTPage(int pid, TranslationEntry entry) {
 		Lib.assertTrue(IPTLock.isHeldByCurrentThread());
 		VMPage page = new VMPage(pid, entry.vpn);
@@ -362,7 +393,12 @@ public class VMKernel extends UserKernel {
 	private static final TranslationEntry nullEntry = new TranslationEntry(-1,-1,false, false, false,false);
 	private static Hashtable<VMPage,TranslationEntry> IPT = new Hashtable<VMPage,TranslationEntry>();
 	private static VMPage[] phyPages;
+	/** how many syscalls are transferring file data into or out of each frame */
+	private static int[] pinCount = new int[pageNum];
+	private static int pinnedFrames = 0;
 	static Lock IPTLock = null;
+	/** signalled when a frame is unpinned while all were pinned */
+	private static Condition2 unpinned = null;
 //	static Lock TLBLock = null;
 	
 	private static int lastTLB = -1;
@@ -174,6 +174,64 @@ public class VMProcess extends UserProcess {
 		return totalAmount;
 	}
 	
+	/**
+	 * A batch holds <tt>IPTLock</tt> while it pins its pages, but not while
+	 * the file is read or written, so other processes can page meanwhile.
+	 */
+	@Override
+	protected void beginPinning() {
+		VMKernel.IPTLock.acquire();
+	}
+
+	@Override
+	protected void endPinning() {
+		VMKernel.IPTLock.release();
+	}
+
+	@Override
+	protected void unpinPages() {
+		if (pinnedPages == 0)
+			return;
+		VMKernel.IPTLock.acquire();
+		for (int i = 0; i < pinnedPages; i++)
+			VMKernel.unpin(pinnedPPNs[i]);
+		VMKernel.IPTLock.release();
+		pinnedPages = 0;
+	}
+
+	/**
+	 * Leave at least one frame unpinned, so that the pages of a batch can
+	 * always be brought in.
+	 */
+	@Override
+	protected int maxPinnedPages() {
+		return Math.max(1, Machine.processor().getNumPhysPages() - 1);
+	}
+
+	/**
+	 * Bring the page in if it is not resident, and pin its frame so that
+	 * nothing swaps it out before the transfer is done. If every frame is
+	 * pinned, the batch stops here rather than wait for other batches while
+	 * holding pins of its own.
+	 */
+	@Override
+	protected int pinPage(int vpn, boolean write) {
+		if (pinnedPages > 0 && VMKernel.getIPTEntry(pid, vpn) == null
+				&& !VMKernel.canObtainFreePPN())
+			return pinLater;
+		TranslationEntry entry = reqPage(vpn);
+		Lib.assertTrue(entry != null && entry.valid);
+		if (write && entry.readOnly)
+			return -1;
+		entry.used = true;
+		if (write) entry.dirty = true;
+		VMKernel.pin(entry.ppn);
+		if (pinnedPPNs == null)
+			pinnedPPNs = new int[maxPinnedPages()];
+		pinnedPPNs[pinnedPages++] = entry.ppn;
+		return entry.ppn;
+	}
+	
 	protected void handleTLBMiss() {
 		int vaddr = Machine.processor().readRegister(Processor.regBadVAddr);
 		int vpn = Processor.pageFromAddress(vaddr);
@@ -252,6 +310,10 @@ public class VMProcess extends UserProcess {
 		Lib.debug(dbgVM, TLB);
 	}
 	
+	/** The frames pinned for the current batch of <tt>transferFile()</tt>. */
+	private int[] pinnedPPNs = null;
+	private int pinnedPages = 0;
+
 	private static final int pageSize = Processor.pageSize;
 	private static final char dbgProcess = 'a';
 	private static final char dbgVM = 'v';